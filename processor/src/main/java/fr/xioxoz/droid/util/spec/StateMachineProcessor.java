@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util.spec;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the hierarchies declared with {@link StateMachineSpec} and generates
+ * the subclasses wiring them. All the checks done at runtime by the machine
+ * when adding the states and transitions are done here, so a generated
+ * machine cannot fail to start because of its hierarchy.
+ */
+@SupportedAnnotationTypes("fr.xioxoz.droid.util.spec.StateMachineSpec")
+public class StateMachineProcessor extends AbstractProcessor {
+
+    private static final String STATE_MACHINE = "fr.xioxoz.droid.util.StateMachine";
+    private static final String STATE = "fr.xioxoz.droid.util.State";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (Element e : round.getElementsAnnotatedWith(StateMachineSpec.class)) {
+            final TypeElement spec = (TypeElement) e;
+            final Map<String, VariableElement> states = checkStates(spec);
+            if (states == null) {
+                continue;
+            }
+            final List<StateMachineSpec.Transition> transitions = checkTransitions(spec, states);
+            if (transitions == null) {
+                continue;
+            }
+            try {
+                generate(spec, states, transitions);
+            } catch (IOException ex) {
+                error(spec, "cannot generate the implementation: " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the machine and its states.
+     * @return the states in the order they must be added, parents first, or
+     *         null on error.
+     */
+    private Map<String, VariableElement> checkStates(TypeElement spec) {
+        boolean valid = true;
+        if (spec.getKind() != ElementKind.CLASS || spec.getNestingKind() != NestingKind.TOP_LEVEL) {
+            error(spec, "@StateMachineSpec must annotate a top level class");
+            return null;
+        }
+        if (spec.getModifiers().contains(Modifier.FINAL)) {
+            error(spec, "@StateMachineSpec class cannot be final");
+            valid = false;
+        }
+        if (!isSubtype(spec.asType(), STATE_MACHINE)) {
+            error(spec, "@StateMachineSpec class must extend " + STATE_MACHINE);
+            valid = false;
+        }
+
+        // Collect the states in declaration order.
+        final Map<String, VariableElement> declared = new LinkedHashMap<>();
+        String initial = null;
+        for (VariableElement f : ElementFilter.fieldsIn(spec.getEnclosedElements())) {
+            final StateMachineSpec.State s = f.getAnnotation(StateMachineSpec.State.class);
+            if (s == null) {
+                continue;
+            }
+            if (f.getModifiers().contains(Modifier.PRIVATE) || f.getModifiers().contains(Modifier.STATIC)) {
+                error(f, "state '" + f.getSimpleName() + "' must be a non-private instance field");
+                valid = false;
+            }
+            if (!isSubtype(f.asType(), STATE)) {
+                error(f, "state '" + f.getSimpleName() + "' must be a " + STATE);
+                valid = false;
+            }
+            if (s.initial()) {
+                if (initial != null) {
+                    error(f, "initial state already set to '" + initial + "'");
+                    valid = false;
+                }
+                initial = f.getSimpleName().toString();
+            }
+            declared.put(f.getSimpleName().toString(), f);
+        }
+        if (declared.isEmpty()) {
+            error(spec, "no state declared");
+            return null;
+        }
+        if (initial == null) {
+            error(spec, "initial state not set");
+            valid = false;
+        }
+
+        for (VariableElement f : declared.values()) {
+            final String parent = parentOf(f);
+            if (!parent.isEmpty() && !declared.containsKey(parent)) {
+                error(f, "unknown parent state '" + parent + "'");
+                valid = false;
+            }
+        }
+        if (!valid) {
+            return null;
+        }
+
+        // Parents first, the declaration order is kept otherwise.
+        final Map<String, VariableElement> ordered = new LinkedHashMap<>();
+        while (ordered.size() < declared.size()) {
+            final int before = ordered.size();
+            for (Map.Entry<String, VariableElement> d : declared.entrySet()) {
+                final String parent = parentOf(d.getValue());
+                if (!ordered.containsKey(d.getKey()) && (parent.isEmpty() || ordered.containsKey(parent))) {
+                    ordered.put(d.getKey(), d.getValue());
+                }
+            }
+            if (ordered.size() == before) {
+                for (Map.Entry<String, VariableElement> d : declared.entrySet()) {
+                    if (!ordered.containsKey(d.getKey())) {
+                        error(d.getValue(), "state '" + d.getKey() + "' is part of a parent cycle");
+                    }
+                }
+                return null;
+            }
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Checks the transitions against the states.
+     * @return the transitions, or null on error.
+     */
+    private List<StateMachineSpec.Transition> checkTransitions(TypeElement spec, Map<String, VariableElement> states) {
+        boolean valid = true;
+        final List<StateMachineSpec.Transition> transitions = new ArrayList<>();
+        final Set<String> keys = new HashSet<>();
+        for (StateMachineSpec.Transition t : spec.getAnnotationsByType(StateMachineSpec.Transition.class)) {
+            if (!states.containsKey(t.from())) {
+                error(spec, "unknown state '" + t.from() + "' in transition on " + t.on());
+                valid = false;
+            }
+            if (!states.containsKey(t.to())) {
+                error(spec, "unknown state '" + t.to() + "' in transition on " + t.on());
+                valid = false;
+            }
+            if (!keys.add(t.from() + "/" + t.on())) {
+                error(spec, "transition from '" + t.from() + "' on " + t.on() + " declared twice");
+                valid = false;
+            }
+            transitions.add(t);
+        }
+        if (!valid) {
+            return null;
+        }
+        if (!spec.getAnnotation(StateMachineSpec.class).checkReachability()) {
+            return transitions;
+        }
+
+        // Grow the set of the states the machine can be in from the initial
+        // one. A transition can be taken when its source or one of its
+        // children can be the current state.
+        final String initial = initialOf(states);
+        final Set<String> reachable = new HashSet<>();
+        reachable.add(initial);
+        final Set<StateMachineSpec.Transition> taken = new HashSet<>();
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (StateMachineSpec.Transition t : transitions) {
+                if (!taken.contains(t) && canBeActive(t.from(), reachable, states)) {
+                    taken.add(t);
+                    grown |= reachable.add(t.to());
+                }
+            }
+        }
+        for (StateMachineSpec.Transition t : transitions) {
+            if (!taken.contains(t)) {
+                error(spec, "transition from '" + t.from() + "' on " + t.on()
+                        + " is unreachable from initial state '" + initial + "'");
+                valid = false;
+            }
+        }
+        return valid ? transitions : null;
+    }
+
+    /**
+     * Tells if <state> is active when the machine is in one of the
+     * <reachable> states.
+     */
+    private static boolean canBeActive(String state, Set<String> reachable, Map<String, VariableElement> states) {
+        for (String r : reachable) {
+            for (String s = r; !s.isEmpty(); s = parentOf(states.get(s))) {
+                if (s.equals(state)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement spec, Map<String, VariableElement> states,
+                          List<StateMachineSpec.Transition> transitions) throws IOException {
+        final String pkg = processingEnv.getElementUtils().getPackageOf(spec).getQualifiedName().toString();
+        final String name = spec.getSimpleName() + "Impl";
+        final String initial = initialOf(states);
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(pkg.isEmpty() ? name : pkg + "." + name, spec).openWriter())) {
+            if (!pkg.isEmpty()) {
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+            out.println("@javax.annotation.processing.Generated(\"" + getClass().getName() + "\")");
+            out.println((spec.getModifiers().contains(Modifier.PUBLIC) ? "public " : "")
+                    + "class " + name + " extends " + spec.getSimpleName() + " {");
+
+            int index = 0;
+            for (String s : states.keySet()) {
+                out.println("    public static final int STATE_" + constantOf(s) + " = " + index++ + ";");
+            }
+
+            for (ExecutableElement c : ElementFilter.constructorsIn(spec.getEnclosedElements())) {
+                if (c.getModifiers().contains(Modifier.PRIVATE)) {
+                    continue;
+                }
+                final String params = c.getParameters().stream()
+                        .map(p -> p.asType() + " " + p.getSimpleName())
+                        .collect(Collectors.joining(", "));
+                final String args = c.getParameters().stream()
+                        .map(p -> p.getSimpleName().toString())
+                        .collect(Collectors.joining(", "));
+                final String throwing = c.getThrownTypes().isEmpty() ? "" : " throws " + c.getThrownTypes().stream()
+                        .map(TypeMirror::toString)
+                        .collect(Collectors.joining(", "));
+
+                out.println();
+                out.println("    " + (c.getModifiers().contains(Modifier.PUBLIC) ? "public " : "")
+                        + name + "(" + params + ")" + throwing + " {");
+                out.println("        super(" + args + ");");
+                for (Map.Entry<String, VariableElement> s : states.entrySet()) {
+                    final String parent = parentOf(s.getValue());
+                    out.println("        addState(" + s.getKey() + (parent.isEmpty() ? "" : ", " + parent) + ");");
+                }
+                out.println("        setInitialState(" + initial + ");");
+                for (StateMachineSpec.Transition t : transitions) {
+                    out.println("        addTransition(" + t.from() + ", " + t.on() + ", " + t.to() + ");");
+                }
+                out.println("    }");
+            }
+            out.println("}");
+        }
+    }
+
+    private static String initialOf(Map<String, VariableElement> states) {
+        for (Map.Entry<String, VariableElement> s : states.entrySet()) {
+            if (s.getValue().getAnnotation(StateMachineSpec.State.class).initial()) {
+                return s.getKey();
+            }
+        }
+        throw new IllegalStateException("initial state not set");
+    }
+
+    private static String parentOf(VariableElement state) {
+        return state.getAnnotation(StateMachineSpec.State.class).parent();
+    }
+
+    private static String constantOf(String field) {
+        return field.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+    }
+
+    private boolean isSubtype(TypeMirror type, String name) {
+        final TypeElement e = processingEnv.getElementUtils().getTypeElement(name);
+        return e != null && processingEnv.getTypeUtils().isAssignable(type, e.asType());
+    }
+
+    private void error(Element e, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+    }
+}
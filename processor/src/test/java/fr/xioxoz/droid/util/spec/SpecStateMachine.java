@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util.spec;
+
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+import fr.xioxoz.droid.util.State;
+import fr.xioxoz.droid.util.StateMachine;
+
+import java.util.Queue;
+
+@StateMachineSpec
+@StateMachineSpec.Transition(from = "idle", on = SpecStateMachine.CONNECT, to = "connecting")
+@StateMachineSpec.Transition(from = "connecting", on = SpecStateMachine.CONNECTED, to = "connected")
+@StateMachineSpec.Transition(from = "connection", on = SpecStateMachine.DISCONNECT, to = "idle")
+public abstract class SpecStateMachine extends StateMachine {
+
+    public static final int CONNECT = 1;
+    public static final int CONNECTED = 2;
+    public static final int DISCONNECT = 3;
+    public static final int PING = 4;
+
+    private class Recorder extends State {
+        @Override
+        public void enter() {
+            receiver.add("enter " + getName());
+        }
+
+        @Override
+        public void exit() {
+            receiver.add("exit " + getName());
+        }
+    }
+
+    private class Connection extends Recorder {
+        @Override
+        public boolean processMessage(Message m) {
+            return receiver.add("handle " + m.what);
+        }
+    }
+
+    private class Idle extends Recorder {
+    }
+
+    private class Connecting extends Recorder {
+    }
+
+    private class Connected extends Recorder {
+    }
+
+    private final Queue<String> receiver;
+
+    @StateMachineSpec.State
+    final State connection = new Connection();
+
+    @StateMachineSpec.State(parent = "connection", initial = true)
+    final State idle = new Idle();
+
+    @StateMachineSpec.State(parent = "connection")
+    final State connecting = new Connecting();
+
+    @StateMachineSpec.State(parent = "connecting")
+    final State connected = new Connected();
+
+    public SpecStateMachine(Looper looper, Queue<String> listener) {
+        super(looper);
+        receiver = listener;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util.spec;
+
+import fr.xioxoz.droid.os.HandlerThread;
+import fr.xioxoz.droid.util.StateMachine;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StateMachineProcessorTest {
+
+    private static final String HEADER = "package test;\n"
+            + "import fr.xioxoz.droid.os.Looper;\n"
+            + "import fr.xioxoz.droid.util.State;\n"
+            + "import fr.xioxoz.droid.util.StateMachine;\n"
+            + "import fr.xioxoz.droid.util.spec.StateMachineSpec;\n";
+
+    /**
+     * Runs the processor on the <body> of a machine. The generated files go
+     * to a temporary directory, deleted afterwards.
+     * @return the errors reported.
+     */
+    private static List<String> errorsOf(String body) throws Exception {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final JavaFileObject source = new SimpleJavaFileObject(URI.create("string:///test/Spec.java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return HEADER + body;
+            }
+        };
+        final String classpath = new File(StateMachine.class.getProtectionDomain()
+                .getCodeSource().getLocation().toURI()).getPath();
+
+        final Path output = Files.createTempDirectory("spec");
+        try {
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                    Arrays.asList("-proc:only", "-classpath", classpath,
+                            "-s", output.toString(), "-d", output.toString()),
+                    null, Collections.singletonList(source));
+            task.setProcessors(Collections.singletonList(new StateMachineProcessor()));
+            task.call();
+        } finally {
+            delete(output);
+        }
+
+        return diagnostics.getDiagnostics().stream()
+                .filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+                .map(d -> d.getMessage(null))
+                .collect(Collectors.toList());
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    @Test
+    public void testGeneratedStateMachine() throws InterruptedException {
+        final BlockingQueue<String> results = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        // Parents first.
+        assertEquals(0, SpecStateMachineImpl.STATE_CONNECTION);
+        assertEquals(1, SpecStateMachineImpl.STATE_IDLE);
+        assertEquals(3, SpecStateMachineImpl.STATE_CONNECTED);
+
+        SpecStateMachine sm = new SpecStateMachineImpl(thread.getLooper(), results);
+        sm.start();
+        assertEquals("enter Connection", results.take());
+        assertEquals("enter Idle", results.take());
+
+        // Not part of a transition: goes to the parent's processMessage.
+        sm.sendMessage(SpecStateMachine.PING);
+        assertEquals("handle " + SpecStateMachine.PING, results.take());
+
+        sm.sendMessage(SpecStateMachine.CONNECT);
+        assertEquals("exit Idle", results.take());
+        assertEquals("enter Connecting", results.take());
+
+        sm.sendMessage(SpecStateMachine.CONNECTED);
+        assertEquals("enter Connected", results.take());
+
+        // Declared on the parent, taken from any child.
+        sm.sendMessage(SpecStateMachine.DISCONNECT);
+        assertEquals("exit Connected", results.take());
+        assertEquals("exit Connecting", results.take());
+        assertEquals("enter Idle", results.take());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testValidSpec() throws Exception {
+        assertEquals(Collections.emptyList(), errorsOf("@StateMachineSpec\n"
+                + "@StateMachineSpec.Transition(from = \"a\", on = 1, to = \"b\")\n"
+                + "abstract class Spec extends StateMachine {\n"
+                + "    @StateMachineSpec.State(initial = true) final State a = new State();\n"
+                + "    @StateMachineSpec.State(parent = \"a\") final State b = new State();\n"
+                + "    Spec(Looper l) { super(l); }\n"
+                + "}\n"));
+    }
+
+    @Test
+    public void testInvalidSpecs() throws Exception {
+        // Unknown parent.
+        List<String> errors = errorsOf("@StateMachineSpec\n"
+                + "abstract class Spec extends StateMachine {\n"
+                + "    @StateMachineSpec.State(initial = true, parent = \"z\") final State a = new State();\n"
+                + "    Spec(Looper l) { super(l); }\n"
+                + "}\n");
+        assertEquals(Collections.singletonList("unknown parent state 'z'"), errors);
+
+        // Parent cycle.
+        errors = errorsOf("@StateMachineSpec\n"
+                + "abstract class Spec extends StateMachine {\n"
+                + "    @StateMachineSpec.State(initial = true) final State a = new State();\n"
+                + "    @StateMachineSpec.State(parent = \"c\") final State b = new State();\n"
+                + "    @StateMachineSpec.State(parent = \"b\") final State c = new State();\n"
+                + "    Spec(Looper l) { super(l); }\n"
+                + "}\n");
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0).contains("parent cycle"));
+
+        // No initial state, private state.
+        errors = errorsOf("@StateMachineSpec\n"
+                + "abstract class Spec extends StateMachine {\n"
+                + "    @StateMachineSpec.State private final State a = new State();\n"
+                + "    Spec(Looper l) { super(l); }\n"
+                + "}\n");
+        assertEquals(Arrays.asList("state 'a' must be a non-private instance field", "initial state not set"), errors);
+
+        // Unknown state in a transition.
+        errors = errorsOf("@StateMachineSpec\n"
+                + "@StateMachineSpec.Transition(from = \"a\", on = 1, to = \"z\")\n"
+                + "abstract class Spec extends StateMachine {\n"
+                + "    @StateMachineSpec.State(initial = true) final State a = new State();\n"
+                + "    Spec(Looper l) { super(l); }\n"
+                + "}\n");
+        assertEquals(Collections.singletonList("unknown state 'z' in transition on 1"), errors);
+
+        // Transition from a state never entered.
+        final String unreachable = "@StateMachineSpec%s\n"
+                + "@StateMachineSpec.Transition(from = \"b\", on = 1, to = \"a\")\n"
+                + "abstract class Spec extends StateMachine {\n"
+                + "    @StateMachineSpec.State(initial = true) final State a = new State();\n"
+                + "    @StateMachineSpec.State final State b = new State();\n"
+                + "    Spec(Looper l) { super(l); }\n"
+                + "}\n";
+        assertEquals(Collections.singletonList("transition from 'b' on 1 is unreachable from initial state 'a'"),
+                errorsOf(String.format(unreachable, "")));
+        assertEquals(Collections.emptyList(), errorsOf(String.format(unreachable, "(checkReachability = false)")));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers of the same size, handed out as reference
+ * counted {@link PooledBuffer}s. A buffer sent as the payload of a message
+ * belongs to the message: the Looper releases it once the message has been
+ * dispatched, unless the Handler retained it, so that buffers can be passed
+ * from one Looper to another without being copied.
+ *
+ * When a leak listener is set, the pool records where each buffer is
+ * acquired and reports the buffers collected by the GC without having been
+ * released.
+ */
+public final class BufferPool {
+
+    /**
+     * Told about the buffers that were never released.
+     */
+    public interface LeakListener {
+        /**
+         * @param acquisition the stack trace of the acquisition of the
+         *                    leaked buffer.
+         */
+        void onLeak(Throwable acquisition);
+    }
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final int bufferSize;
+
+    /**
+     * The released buffers, ready to be acquired again.
+     */
+    private final PooledBuffer[] free;
+    private int freeCount;
+
+    private volatile LeakListener leakListener;
+
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * @param bufferSize the capacity of the buffers in bytes.
+     * @param capacity the maximum number of released buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("invalid buffer size '" + bufferSize + "'");
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException("invalid capacity '" + capacity + "'");
+        }
+        this.bufferSize = bufferSize;
+        this.free = new PooledBuffer[capacity];
+    }
+
+    /**
+     * Provides a cleared buffer, with a reference count of 1.
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer b = null;
+        synchronized (this) {
+            if (freeCount > 0) {
+                b = free[--freeCount];
+                free[freeCount] = null;
+            }
+        }
+        if (b == null) {
+            b = new PooledBuffer(this, ByteBuffer.allocateDirect(bufferSize));
+            CLEANER.register(b, b.state);
+        }
+        b.acquired(leakListener != null ? new Throwable("buffer acquired here") : null);
+        return b;
+    }
+
+    /**
+     * Enables leak detection, which records a stack trace per acquisition.
+     * @param listener the listener told about the leaks, null to disable the
+     *                 detection.
+     */
+    public void setLeakListener(LeakListener listener) {
+        this.leakListener = listener;
+    }
+
+    /**
+     * @return the number of leaked buffers detected so far.
+     */
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    /**
+     * @return the number of released buffers kept for reuse.
+     */
+    public synchronized int getFreeCount() {
+        return freeCount;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Takes back a buffer whose last reference was released.
+     */
+    void recycle(PooledBuffer b) {
+        synchronized (this) {
+            if (freeCount < free.length) {
+                free[freeCount++] = b;
+            }
+        }
+    }
+
+    /**
+     * Called by the cleaner with the state of a collected buffer.
+     */
+    void collected(PooledBuffer.State state) {
+        if (state.refCount.get() > 0) {
+            leaks.incrementAndGet();
+            final LeakListener l = leakListener;
+            if (l != null && state.acquisition != null) {
+                l.onLeak(state.acquisition);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+/**
+ * A Clock is the time source of a Looper: the due dates of its messages are
+ * expressed with it, and its queue waits with it for the next message.
+ */
+public interface Clock {
+    /**
+     * Provides the current time. It never goes backward.
+     * @return the time in nanoseconds.
+     */
+    long nanoTime();
+
+    /**
+     * Provides the current time in milliseconds, the unit of the message due
+     * dates.
+     * @return the time in milliseconds.
+     */
+    default long millis() {
+        return nanoTime() / 1_000_000L;
+    }
+
+    /**
+     * Waits on <code>lock</code>, whose monitor is held by the caller, until
+     * it is notified or <code>nanos</code> elapsed.
+     * @param lock the object to wait on.
+     * @param nanos the maximum time to wait in nanoseconds, strictly
+     *              positive, or negative to wait until notified.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    default void await(Object lock, long nanos) throws InterruptedException {
+        if (nanos < 0) {
+            lock.wait();
+        } else {
+            lock.wait(nanos / 1_000_000L, (int) (nanos % 1_000_000L));
+        }
+    }
+}
@@ -4,6 +4,8 @@
 
 package fr.xioxoz.droid.os;
 
+import java.util.List;
+
 public class Handler implements Messenger {
 
     /**
@@ -30,6 +32,27 @@ public class Handler implements Messenger {
      */
     private final Callback callback;
 
+    /**
+     * Priority lane of the messages sent to this handler.
+     */
+    private final int lane;
+
+    /**
+     * Number of due messages served in a row in fair mode.
+     */
+    private volatile int weight = 1;
+
+    /**
+     * Delay tolerated by the delayed messages of this handler.
+     */
+    private volatile long slack;
+
+    /**
+     * The share of the queue holding the messages of this handler in fair
+     * mode, guarded by the queue.
+     */
+    MessageQueue.Share share;
+
     // Only used for testing.
     Handler() {
         this(null, null);
@@ -40,8 +63,86 @@ public class Handler implements Messenger {
     }
 
     public Handler(Looper l, Callback cb) {
+        this(l, cb, 0);
+    }
+
+    /**
+     * Creates a handler whose messages are queued in the given priority lane
+     * of the Looper, see {@link Looper#setLanes(int, int)}.
+     * @param lane the lane, 0 being the most urgent one.
+     */
+    public Handler(Looper l, Callback cb, int lane) {
+        if (lane < 0) {
+            throw new IllegalArgumentException("invalid lane '" + lane + "'");
+        }
         this.looper = l;
         this.callback = cb;
+        this.lane = lane;
+    }
+
+    /**
+     * Provides the Looper this handler is running on.
+     */
+    public final Looper getLooper() {
+        return looper;
+    }
+
+    /**
+     * Provides the priority lane of the messages sent to this handler.
+     */
+    public final int getLane() {
+        return lane;
+    }
+
+    /**
+     * Sets the number of due messages of this handler served in a row when
+     * the Looper is fair, see {@link Looper#setFair(boolean)}.
+     * @param weight the weight, 1 by default.
+     */
+    public final void setWeight(int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("invalid weight '" + weight + "'");
+        }
+        this.weight = weight;
+    }
+
+    public final int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Sets the delay the delayed messages of this handler tolerate, so that
+     * the Looper delivers the ones due at close dates in a single wakeup.
+     * See {@link Message#withSlack(long)}.
+     * @param slack the tolerance in milliseconds, 0 by default.
+     */
+    public final void setSlack(long slack) {
+        if (slack < 0) {
+            throw new IllegalArgumentException("invalid slack '" + slack + "'");
+        }
+        this.slack = slack;
+    }
+
+    public final long getSlack() {
+        return slack;
+    }
+
+    /**
+     * Provides the number of messages pending for this handler, spilled ones
+     * included. Only tracked when the Looper is fair.
+     * @return the number of messages, or -1 if the Looper is not fair.
+     */
+    public final int getQueueDepth() {
+        return looper.getQueue().getDepth(this);
+    }
+
+    /**
+     * Provides the largest number of messages pending for this handler since
+     * the Looper was made fair.
+     * @return the number of messages, or -1 if the Looper is not fair.
+     */
+    public final int getMaxQueueDepth() {
+        return looper.getQueue().getMaxDepth(this);
     }
 
     void dispatchMessage(Message m) {
@@ -56,6 +157,13 @@ public class Handler implements Messenger {
 
     protected void handleMessage(Message m) {}
 
+    /**
+     * Called instead of handleMessage() for a message taken from the queue
+     * after its deadline. Expired messages are dropped by default.
+     * @param m the expired message.
+     */
+    protected void onMessageExpired(Message m) {}
+
     public Message obtainMessage() {
         return Message.obtain()
                 .withTarget(this);
@@ -72,13 +180,45 @@ public class Handler implements Messenger {
     }
 
     public final void sendMessageDelayed(Message m, long delay) {
-        sendMessageAtTime(m, System.currentTimeMillis()+delay);
+        sendMessageAtTime(m, looper.getClock().millis()+delay);
+    }
+
+    /**
+     * Sends a delayed message, delivered up to <code>slack</code>
+     * milliseconds late to share a wakeup with other timers. The slack only
+     * applies to this sending.
+     */
+    public final void sendMessageDelayed(Message m, long delay, long slack) {
+        if (slack < 0) {
+            throw new IllegalArgumentException("invalid slack '" + slack + "'");
+        }
+
+        MessageQueue q = looper.getQueue();
+        if (q == null) {
+            throw new IllegalStateException("posting Message on Looper with null queue");
+        }
+
+        q.enqueueMessage(m, looper.getClock().millis()+delay, slack);
     }
 
     public final void sendMessageAtFrontOfQueue(Message m) {
         sendMessageAtTime(m, 0l);
     }
 
+    /**
+     * Sends several messages at the front of the queue at once. The messages
+     * are delivered in the list order, before any other message.
+     * @param ms the messages to deliver.
+     */
+    public final void sendMessagesAtFrontOfQueue(List<Message> ms) {
+        MessageQueue q = looper.getQueue();
+        if (q == null) {
+            throw new IllegalStateException("posting Message on Looper with null queue");
+        }
+
+        q.enqueueMessagesAtFront(ms);
+    }
+
     public final void sendMessageAtTime(Message m, long time) {
         if (time < 0) {
             throw new IllegalArgumentException("can't send message with negative time");
@@ -91,4 +231,69 @@ public class Handler implements Messenger {
 
         q.enqueueMessage(m, time);
     }
+
+    @Override
+    public final MessageToken sendMessageWithToken(Message m) {
+        return sendMessageDelayedWithToken(m, 0l);
+    }
+
+    @Override
+    public final MessageToken sendMessageDelayedWithToken(Message m, long delay) {
+        return sendMessageAtTimeWithToken(m, looper.getClock().millis()+delay);
+    }
+
+    @Override
+    public final MessageToken sendMessageAtTimeWithToken(Message m, long time) {
+        if (time < 0) {
+            throw new IllegalArgumentException("can't send message with negative time");
+        }
+
+        MessageQueue q = looper.getQueue();
+        if (q == null) {
+            throw new IllegalStateException("posting Message on Looper with null queue");
+        }
+
+        return q.enqueueMessageWithToken(m, time);
+    }
+
+    @Override
+    public final boolean cancel(MessageToken token) {
+        if (token == null) {
+            throw new NullPointerException("token cannot be null");
+        }
+        if (token.message == null) {
+            return false;
+        }
+        if (token.message.target != this) {
+            throw new IllegalArgumentException("token of another handler");
+        }
+        return token.queue.cancel(token);
+    }
+
+    /**
+     * Tells if messages with the code <code>what</code> are pending for this
+     * handler.
+     * @param what the message code.
+     * @return true if at least one message is pending.
+     */
+    public final boolean hasMessages(int what) {
+        return looper.getQueue().hasMessages(this, what);
+    }
+
+    /**
+     * Removes the pending messages with the code <code>what</code>.
+     * @param what the message code.
+     */
+    public final void removeMessages(int what) {
+        looper.getQueue().removeMessages(this, what);
+    }
+
+    /**
+     * Provides a copy of the messages pending for this handler, in delivery
+     * order. The queue is left untouched.
+     * @return the copies, with their due date.
+     */
+    public final List<Message> copyPendingMessages() {
+        return looper.getQueue().copyMessages(this);
+    }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+
+/**
+ * A Flow.Publisher of the items produced by a Handler. The Handler offers its
+ * items on its Looper, they are kept in a buffer of <code>capacity</code>
+ * items until the subscriber asks for them, and are delivered on the Looper
+ * too. When the buffer is full, offers are refused and the Handler receives a
+ * message with the <code>readyWhat</code> code once there is room again, so
+ * that it produces only as fast as the subscriber consumes.
+ *
+ * The publisher accepts a single subscriber.
+ * @param <T> the type of the items.
+ */
+public final class HandlerPublisher<T> implements Flow.Publisher<T> {
+
+    private static final int CMD_SUBSCRIBE = 0;
+    private static final int CMD_REQUEST = 1;
+    private static final int CMD_CANCEL = 2;
+
+    private static final Flow.Subscription NO_SUBSCRIPTION = new Flow.Subscription() {
+        @Override
+        public void request(long n) {}
+
+        @Override
+        public void cancel() {}
+    };
+
+    private final Handler source;
+    private final int readyWhat;
+    private final int capacity;
+    private final Handler handler;
+
+    // Everything below is confined to the Looper.
+    private final ArrayDeque<T> buffer = new ArrayDeque<>();
+    private Flow.Subscriber<? super T> subscriber;
+    private boolean subscribed;
+    private long demand;
+    private boolean cancelled;
+    private boolean completed;
+    private Throwable failure;
+    private boolean terminated;
+    private boolean draining;
+
+    // True when an offer was refused since the source was last told to
+    // resume.
+    private boolean full;
+
+    /**
+     * @param source the Handler producing the items.
+     * @param readyWhat the code of the message telling the source there is
+     *                  room again in the buffer.
+     * @param capacity the maximum number of buffered items.
+     */
+    public HandlerPublisher(Handler source, int readyWhat, int capacity) {
+        if (source == null) {
+            throw new NullPointerException("source cannot be null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid capacity '" + capacity + "'");
+        }
+        this.source = source;
+        this.readyWhat = readyWhat;
+        this.capacity = capacity;
+        this.handler = new Handler(source.getLooper(), m -> {
+            handleMessage(m);
+            return true;
+        });
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> s) {
+        if (s == null) {
+            throw new NullPointerException("subscriber cannot be null");
+        }
+        handler.sendMessage(handler.obtainMessage(CMD_SUBSCRIBE).withPayload(s));
+    }
+
+    /**
+     * Publishes an item. Must be called on the Looper of the source.
+     * @param item the item.
+     * @return false if the item was dropped because the buffer is full or
+     *         the subscriber cancelled.
+     */
+    public boolean offer(T item) {
+        checkThread("offer");
+        if (item == null) {
+            throw new NullPointerException("item cannot be null");
+        }
+        if (completed || failure != null) {
+            throw new IllegalStateException("publisher already completed");
+        }
+        if (cancelled) {
+            return false;
+        }
+        if (buffer.size() >= capacity) {
+            full = true;
+            return false;
+        }
+        buffer.add(item);
+        drain();
+        return true;
+    }
+
+    /**
+     * Provides the number of items the buffer can still take. Must be called
+     * on the Looper of the source.
+     */
+    public int remainingCapacity() {
+        checkThread("remainingCapacity");
+        return capacity - buffer.size();
+    }
+
+    /**
+     * Ends the stream once the buffered items are delivered. Must be called
+     * on the Looper of the source.
+     */
+    public void complete() {
+        checkThread("complete");
+        completed = true;
+        drain();
+    }
+
+    /**
+     * Ends the stream with an error, the buffered items are dropped. Must be
+     * called on the Looper of the source.
+     */
+    public void fail(Throwable t) {
+        checkThread("fail");
+        if (t == null) {
+            throw new NullPointerException("error cannot be null");
+        }
+        failure = t;
+        buffer.clear();
+        drain();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleMessage(Message m) {
+        switch (m.what) {
+            case CMD_SUBSCRIBE:
+                final Flow.Subscriber<? super T> s = (Flow.Subscriber<? super T>) m.payload;
+                if (subscribed) {
+                    s.onSubscribe(NO_SUBSCRIPTION);
+                    s.onError(new IllegalStateException("publisher already subscribed"));
+                    return;
+                }
+                subscribed = true;
+                subscriber = s;
+                s.onSubscribe(new Subscription());
+                drain();
+                break;
+
+            case CMD_REQUEST:
+                final long n = (Long) m.payload;
+                if (cancelled || terminated) {
+                    return;
+                }
+                if (n <= 0) {
+                    cancelled = true;
+                    buffer.clear();
+                    subscriber.onError(new IllegalArgumentException("invalid request '" + n + "'"));
+                    subscriber = null;
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                drain();
+                break;
+
+            case CMD_CANCEL:
+                cancelled = true;
+                buffer.clear();
+                subscriber = null;
+                break;
+        }
+    }
+
+    /**
+     * Delivers the buffered items the subscriber asked for, then the end of
+     * the stream once the buffer is empty.
+     */
+    private void drain() {
+        if (draining || subscriber == null) {
+            return;
+        }
+        draining = true;
+        try {
+            // The subscriber may request or cancel from onNext().
+            while (demand > 0 && !buffer.isEmpty() && !cancelled) {
+                demand--;
+                subscriber.onNext(buffer.poll());
+            }
+            if (cancelled) {
+                return;
+            }
+            if (buffer.isEmpty() && !terminated && (completed || failure != null)) {
+                terminated = true;
+                if (failure != null) {
+                    subscriber.onError(failure);
+                } else {
+                    subscriber.onComplete();
+                }
+                subscriber = null;
+                return;
+            }
+            if (full && buffer.size() < capacity) {
+                full = false;
+                source.sendMessage(source.obtainMessage(readyWhat));
+            }
+        } finally {
+            draining = false;
+        }
+    }
+
+    private void checkThread(String method) {
+        if (!handler.getLooper().isCurrentThread()) {
+            throw new IllegalStateException(method + " called from foreign thread "
+                    + Thread.currentThread().getName());
+        }
+    }
+
+    private final class Subscription implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+            handler.sendMessage(handler.obtainMessage(CMD_REQUEST).withPayload(n));
+        }
+
+        @Override
+        public void cancel() {
+            handler.sendMessage(handler.obtainMessage(CMD_CANCEL));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import java.util.concurrent.Flow;
+
+/**
+ * A Flow.Subscriber sending the items it receives to a Handler, as messages
+ * with the <code>what</code> code. At most <code>bufferSize</code> items are
+ * pending in the queue of the Handler: more are requested as the Looper
+ * dispatches them, so that a fast publisher cannot flood the Looper. The
+ * completion of the stream is sent as a message with the
+ * <code>completeWhat</code> code, whose payload is the error if it failed.
+ *
+ * Items removed from the queue with <code>removeMessages</code> are not
+ * replaced by new ones.
+ * @param <T> the type of the items.
+ */
+public final class HandlerSubscriber<T> implements Flow.Subscriber<T> {
+
+    private final Handler target;
+    private final int what;
+    private final int completeWhat;
+    private final int bufferSize;
+
+    /**
+     * Number of dispatched items after which more are requested.
+     */
+    private final int batch;
+
+    private final Message.DispatchListener drained = m -> onDrained();
+
+    private volatile Flow.Subscription subscription;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Items dispatched since the last request, confined to the Looper.
+     */
+    private int consumed;
+
+    /**
+     * @param target the Handler receiving the items.
+     * @param what the code of the messages carrying the items.
+     * @param completeWhat the code of the message ending the stream.
+     * @param bufferSize the maximum number of items in the queue.
+     */
+    public HandlerSubscriber(Handler target, int what, int completeWhat, int bufferSize) {
+        if (target == null) {
+            throw new NullPointerException("target cannot be null");
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("invalid buffer size '" + bufferSize + "'");
+        }
+        this.target = target;
+        this.what = what;
+        this.completeWhat = completeWhat;
+        this.bufferSize = bufferSize;
+        this.batch = Math.max(1, bufferSize / 2);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        if (s == null) {
+            throw new NullPointerException("subscription cannot be null");
+        }
+        if (subscription != null || cancelled) {
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        s.request(bufferSize);
+    }
+
+    @Override
+    public void onNext(T item) {
+        if (item == null) {
+            throw new NullPointerException("item cannot be null");
+        }
+        final Message m = target.obtainMessage(what).withPayload(item);
+        m.listener = drained;
+        target.sendMessage(m);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (t == null) {
+            throw new NullPointerException("error cannot be null");
+        }
+        target.sendMessage(target.obtainMessage(completeWhat).withPayload(t));
+    }
+
+    @Override
+    public void onComplete() {
+        target.sendMessage(target.obtainMessage(completeWhat));
+    }
+
+    /**
+     * Cancels the subscription, the items already queued are still
+     * delivered.
+     */
+    public void cancel() {
+        cancelled = true;
+        final Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    /**
+     * Runs on the Looper once an item was handled.
+     */
+    private void onDrained() {
+        if (cancelled) {
+            return;
+        }
+        // Request in batches to limit the signals to the publisher.
+        if (++consumed >= batch) {
+            final int n = consumed;
+            consumed = 0;
+            subscription.request(n);
+        }
+    }
+}
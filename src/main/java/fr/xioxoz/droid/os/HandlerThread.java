@@ -4,19 +4,235 @@
 
 package fr.xioxoz.droid.os;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 /**
  * A Thread implementation that runs a Looper.
  * The embedded looper can be used to run Handler(s) on it.
  */
 public class HandlerThread extends Thread {
 
+    /**
+     * Configures and starts HandlerThreads. The thread settings are those of
+     * a {@link Thread}, the queue settings those of the {@link Looper}.
+     */
+    public static final class Builder {
+        private String name = "handler-thread";
+        private boolean daemon;
+        private int priority = Thread.NORM_PRIORITY;
+        private long stackSize;
+        private UncaughtExceptionHandler uncaughtExceptionHandler;
+        private Clock clock = MonotonicClock.INSTANCE;
+        private long spillHorizon;
+        private int lanes = 1;
+        private int quantum;
+        private boolean earliestDeadlineFirst;
+        private boolean fair;
+
+        /**
+         * The name of the thread, or the prefix of the names of the threads
+         * started by <code>startAll</code>.
+         */
+        public Builder withName(String name) {
+            if (name == null) {
+                throw new NullPointerException("name cannot be null");
+            }
+            this.name = name;
+            return this;
+        }
+
+        public Builder withDaemon(boolean daemon) {
+            this.daemon = daemon;
+            return this;
+        }
+
+        public Builder withPriority(int priority) {
+            if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+                throw new IllegalArgumentException("invalid priority '" + priority + "'");
+            }
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * The stack size of the thread in bytes, 0 for the default one.
+         */
+        public Builder withStackSize(long stackSize) {
+            if (stackSize < 0) {
+                throw new IllegalArgumentException("invalid stack size '" + stackSize + "'");
+            }
+            this.stackSize = stackSize;
+            return this;
+        }
+
+        /**
+         * The handler of the exceptions escaping the Looper, null for the
+         * default one.
+         */
+        public Builder withUncaughtExceptionHandler(UncaughtExceptionHandler handler) {
+            this.uncaughtExceptionHandler = handler;
+            return this;
+        }
+
+        /**
+         * The time source of the Looper, see {@link Looper#prepare(Clock)}.
+         */
+        public Builder withClock(Clock clock) {
+            if (clock == null) {
+                throw new NullPointerException("clock cannot be null");
+            }
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * The spill horizon of the Looper, see {@link Looper#setSpillHorizon(long)}.
+         */
+        public Builder withSpillHorizon(long horizon) {
+            if (horizon < 0) {
+                throw new IllegalArgumentException("invalid spill horizon '" + horizon + "'");
+            }
+            this.spillHorizon = horizon;
+            return this;
+        }
+
+        /**
+         * The priority lanes of the Looper, see {@link Looper#setLanes(int, int)}.
+         */
+        public Builder withLanes(int count, int quantum) {
+            if (count < 1) {
+                throw new IllegalArgumentException("invalid lane count '" + count + "'");
+            }
+            if (quantum < 0) {
+                throw new IllegalArgumentException("invalid quantum '" + quantum + "'");
+            }
+            this.lanes = count;
+            this.quantum = quantum;
+            return this;
+        }
+
+        /**
+         * The delivery order of the due messages of the Looper, see
+         * {@link Looper#setEarliestDeadlineFirst(boolean)}.
+         */
+        public Builder withEarliestDeadlineFirst(boolean enabled) {
+            this.earliestDeadlineFirst = enabled;
+            return this;
+        }
+
+        /**
+         * The fair mode of the Looper, see {@link Looper#setFair(boolean)}.
+         */
+        public Builder withFair(boolean fair) {
+            this.fair = fair;
+            return this;
+        }
+
+        /**
+         * Creates a thread, not started.
+         */
+        public HandlerThread build() {
+            return new HandlerThread(this, name, null);
+        }
+
+        /**
+         * Starts <code>count</code> threads at once, named after the builder
+         * name and their index, and waits for all their Loopers to be ready.
+         * @return the started threads.
+         */
+        public List<HandlerThread> startAll(int count) {
+            if (count < 0) {
+                throw new IllegalArgumentException("invalid count '" + count + "'");
+            }
+
+            final CountDownLatch ready = new CountDownLatch(count);
+            final List<HandlerThread> threads = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                threads.add(new HandlerThread(this, name + "-" + i, ready));
+            }
+            for (HandlerThread t : threads) {
+                t.start();
+            }
+            awaitUninterruptibly(ready);
+            return threads;
+        }
+    }
+
     /**
      * The Looper that will run on this thread.
      */
-    private Looper looper;
+    private volatile Looper looper;
+
+    /**
+     * The time source of the Looper.
+     */
+    private final Clock clock;
+
+    /**
+     * The spill horizon of the Looper, 0 when disabled.
+     */
+    private final long spillHorizon;
+
+    /**
+     * The priority lanes of the Looper and their quantum.
+     */
+    private final int lanes;
+    private final int quantum;
+
+    /**
+     * True when the Looper delivers the due messages by deadline.
+     */
+    private final boolean earliestDeadlineFirst;
+
+    /**
+     * True when the Looper serves its Handlers round-robin.
+     */
+    private final boolean fair;
+
+    /**
+     * Released once the Looper is ready, or failed to be created.
+     */
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    /**
+     * Latch shared by threads started together, may be null.
+     */
+    private final CountDownLatch group;
 
     public HandlerThread(String name) {
+        this(name, MonotonicClock.INSTANCE);
+    }
+
+    public HandlerThread(String name, Clock clock) {
         super(name);
+        if (clock == null) {
+            throw new NullPointerException("clock cannot be null");
+        }
+        this.clock = clock;
+        this.spillHorizon = 0;
+        this.lanes = 1;
+        this.quantum = 0;
+        this.earliestDeadlineFirst = false;
+        this.fair = false;
+        this.group = null;
+    }
+
+    private HandlerThread(Builder b, String name, CountDownLatch group) {
+        super(null, null, name, b.stackSize);
+        setDaemon(b.daemon);
+        setPriority(b.priority);
+        if (b.uncaughtExceptionHandler != null) {
+            setUncaughtExceptionHandler(b.uncaughtExceptionHandler);
+        }
+        this.clock = b.clock;
+        this.spillHorizon = b.spillHorizon;
+        this.lanes = b.lanes;
+        this.quantum = b.quantum;
+        this.earliestDeadlineFirst = b.earliestDeadlineFirst;
+        this.fair = b.fair;
+        this.group = group;
     }
 
     /**
@@ -29,25 +245,8 @@ public class HandlerThread extends Thread {
             return null;
         }
 
-        boolean wasInterrupted = false;
-
         // If the thread has been started, wait until the looper has been created.
-        synchronized (this) {
-            while (isAlive() && looper == null) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    wasInterrupted = true;
-                }
-            }
-        }
-
-        // We may need to restore the thread's interrupted flag, because it may
-        // have been cleared above since we eat InterruptedExceptions.
-        if (wasInterrupted) {
-            Thread.currentThread().interrupt();
-        }
-
+        awaitUninterruptibly(ready);
         return looper;
     }
 
@@ -63,11 +262,46 @@ public class HandlerThread extends Thread {
 
     @Override
     public void run() {
-        Looper.prepare();
-        synchronized (this) {
-            looper = Looper.myLooper();
-            notifyAll();
+        try {
+            Looper.prepare(clock);
+            final Looper l = Looper.myLooper();
+            if (spillHorizon != 0) {
+                l.setSpillHorizon(spillHorizon);
+            }
+            if (lanes != 1) {
+                l.setLanes(lanes, quantum);
+            }
+            if (earliestDeadlineFirst) {
+                l.setEarliestDeadlineFirst(true);
+            }
+            if (fair) {
+                l.setFair(true);
+            }
+            looper = l;
+        } finally {
+            ready.countDown();
+            if (group != null) {
+                group.countDown();
+            }
         }
         Looper.loop();
     }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean wasInterrupted = false;
+        for (;;) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                wasInterrupted = true;
+            }
+        }
+
+        // We may need to restore the thread's interrupted flag, because it may
+        // have been cleared above since we eat InterruptedExceptions.
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
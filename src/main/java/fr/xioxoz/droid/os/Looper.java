@@ -4,8 +4,25 @@
 
 package fr.xioxoz.droid.os;
 
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+
 public class Looper {
 
+    /**
+     * Listener of the readiness of a channel watched by a Looper.
+     */
+    public interface OnChannelEventListener {
+        /**
+         * Called on the Looper thread when the channel is ready.
+         * @param channel the channel.
+         * @param readyOps the ready operations, see {@link java.nio.channels.SelectionKey}.
+         * @return the operations to keep watching, 0 to stop watching the
+         *         channel.
+         */
+        int onChannelEvents(SelectableChannel channel, int readyOps);
+    }
+
     /**
      * Thread local instance of a Looper. There's only one Looper instance
      * per thread.
@@ -17,23 +34,166 @@ public class Looper {
      */
     private final MessageQueue queue;
 
-    private Looper() {
-        queue = new MessageQueue();
+    /**
+     * The thread running this Looper.
+     */
+    private final Thread thread;
+
+    private Looper(Clock clock) {
+        queue = new MessageQueue(clock);
+        thread = Thread.currentThread();
     }
 
     public MessageQueue getQueue() {
         return queue;
     }
 
+    /**
+     * Provides the time source of this Looper. The due dates of the messages
+     * sent to it are expressed in its milliseconds.
+     */
+    public Clock getClock() {
+        return queue.getClock();
+    }
+
+    /**
+     * Provides the thread running this Looper.
+     */
+    public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * Tells if the caller runs on the thread of this Looper.
+     */
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
     public void quit() {
         queue.quit();
     }
 
+    /**
+     * Defines the distance from now after which delayed messages are kept
+     * out of the queue ordered list, then paged back in shortly before they
+     * are due. It keeps the queue cheap when it holds many long timeouts.
+     * @param horizon the horizon in milliseconds, 0 to disable spilling.
+     */
+    public void setSpillHorizon(long horizon) {
+        queue.setSpillHorizon(horizon);
+    }
+
+    /**
+     * Splits the queue in priority lanes. Messages go to the lane of their
+     * Handler, or to the one set on the message, lanes beyond the last one
+     * being folded on it. The first lane with a due message is served first,
+     * messages being ordered by due date within a lane. A lane with a due
+     * message skipped <code>quantum</code> times for more urgent ones since it
+     * was last served is served anyway, so that busy lanes cannot starve the
+     * others.
+     * @param count the number of lanes, 1 to disable priorities.
+     * @param quantum the number of skips a lane tolerates, 0 for strict
+     *                priorities.
+     */
+    public void setLanes(int count, int quantum) {
+        queue.setLanes(count, quantum);
+    }
+
+    /**
+     * Among the due messages of a lane, delivers first the ones with the
+     * closest deadline instead of the oldest ones, so that an overloaded
+     * Looper spends its time on the messages still worth handling. Messages
+     * sent at the front of the queue are still delivered first. Picking a
+     * message costs a scan of the due messages of its lane.
+     * @param enabled true for earliest deadline first, false for due date
+     *                order.
+     */
+    public void setEarliestDeadlineFirst(boolean enabled) {
+        queue.setEarliestDeadlineFirst(enabled);
+    }
+
+    /**
+     * Gives each Handler its own share of the queue. The Handlers with a due
+     * message are then served round-robin, as many messages in a row as
+     * their weight, instead of in due date order, so that a Handler flooding
+     * the Looper cannot starve the others. The messages of a Handler keep
+     * their order, and priority lanes still apply first.
+     * @param enabled true for fair mode, false for due date order.
+     */
+    public void setFair(boolean enabled) {
+        queue.setFair(enabled);
+    }
+
+    /**
+     * Watches a channel from the Looper thread, without a thread of its own:
+     * the Looper waits for its messages and the channels at once, and calls
+     * the listener on its thread when the channel is ready. The channel is
+     * switched to non-blocking mode. Registering a channel again replaces its
+     * operations and listener. Note that the Looper then waits in real time,
+     * whatever its clock.
+     * @param channel the channel.
+     * @param ops the operations to watch, see {@link java.nio.channels.SelectionKey}.
+     * @param listener the listener of the channel.
+     * @throws IOException if the channel can't be made non-blocking.
+     */
+    public void registerChannel(SelectableChannel channel, int ops, OnChannelEventListener listener)
+            throws IOException {
+        if (channel == null || listener == null) {
+            throw new NullPointerException("channel and listener cannot be null");
+        }
+        if (ops == 0 || (ops & ~channel.validOps()) != 0) {
+            throw new IllegalArgumentException("invalid operations '" + ops + "'");
+        }
+        channel.configureBlocking(false);
+        queue.registerChannel(channel, ops, listener);
+    }
+
+    /**
+     * Stops watching a channel.
+     * @param channel the channel.
+     */
+    public void unregisterChannel(SelectableChannel channel) {
+        if (channel == null) {
+            throw new NullPointerException("channel cannot be null");
+        }
+        queue.registerChannel(channel, 0, null);
+    }
+
+    /**
+     * Provides the number of times the Looper woke up after waiting for a
+     * message or a channel.
+     */
+    public long getWakeupCount() {
+        return queue.getWakeupCount();
+    }
+
+    /**
+     * Provides the number of delayed messages that were aligned on the due
+     * date of another one thanks to their slack, and so did not need a
+     * wakeup of their own.
+     */
+    public long getSavedWakeupCount() {
+        return queue.getSavedWakeupCount();
+    }
+
     public static void prepare() {
+        prepare(MonotonicClock.INSTANCE);
+    }
+
+    /**
+     * Creates the Looper of the current thread, using the given time source.
+     * @param clock the clock, a {@link VirtualClock} to run the delayed
+     *              messages without waiting for them.
+     */
+    public static void prepare(Clock clock) {
+        if (clock == null) {
+            throw new NullPointerException("clock cannot be null");
+        }
         if (localLooper.get() != null) {
             throw new IllegalStateException("only one Looper may be created per thread");
         }
-        localLooper.set(new Looper());
+        localLooper.set(new Looper(clock));
     }
 
     static Looper myLooper() {
@@ -52,7 +212,17 @@ public class Looper {
                 return;
             }
 
-            m.target.dispatchMessage(m);
+            if (m.expired) {
+                m.target.onMessageExpired(m);
+            } else {
+                m.target.dispatchMessage(m);
+            }
+            final Message.DispatchListener listener = m.listener;
+            if (listener != null) {
+                m.listener = null;
+                listener.onDispatched(m);
+            }
+            m.releasePayload();
         }
     }
 }
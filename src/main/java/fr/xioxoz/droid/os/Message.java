@@ -9,6 +9,13 @@ package fr.xioxoz.droid.os;
  * sent to a {@link Handler}.
  */
 public class Message<T> {
+
+    /**
+     * Told by the Looper once a message has been handled.
+     */
+    interface DispatchListener {
+        void onDispatched(Message m);
+    }
     /**
      * User-defined message code so that the recipient can identify
      * what this message is about. Each {@link Handler} has its own name-space
@@ -32,6 +39,57 @@ public class Message<T> {
      */
     long when;
 
+    /**
+     * Priority lane of the message, -1 to use the one of its Handler.
+     */
+    int lane = -1;
+
+    /**
+     * Date after which the message is worthless, 0 when it has none.
+     */
+    long deadline;
+
+    /**
+     * Time the message stays worth handling once due, -1 when unbounded.
+     */
+    long timeToLive = -1;
+
+    /**
+     * Delay the message tolerates to share a wakeup with others, -1 to use
+     * the one of its Handler.
+     */
+    long slack = -1;
+
+    /**
+     * Date after which the enqueued message expires, from its deadline and
+     * time to live, Long.MAX_VALUE when it never does.
+     */
+    long expiry = Long.MAX_VALUE;
+
+    /**
+     * True when the message was taken from the queue after its expiry.
+     */
+    boolean expired;
+
+    /**
+     * Told once the message has been dispatched or expired, may be null.
+     */
+    DispatchListener listener;
+
+    /**
+     * Incremented each time the message is enqueued, to tell its sendings
+     * apart.
+     */
+    int generation;
+
+    /**
+     * Links of the message in the MessageList holding it, null when the
+     * message is not enqueued.
+     */
+    MessageList list;
+    Message prev;
+    Message next;
+
     public Message withWhat(int what) {
         this.what = what;
         return this;
@@ -42,6 +100,69 @@ public class Message<T> {
         return this;
     }
 
+    /**
+     * Sends the message in the given priority lane of the queue instead of
+     * the lane of its Handler, see {@link Looper#setLanes(int, int)}.
+     * @param lane the lane, 0 being the most urgent one.
+     */
+    public Message withLane(int lane) {
+        if (lane < 0) {
+            throw new IllegalArgumentException("invalid lane '" + lane + "'");
+        }
+        this.lane = lane;
+        return this;
+    }
+
+    /**
+     * Makes the message expire if it is not dispatched by <code>deadline</code>,
+     * an expired message being handed to {@link Handler#onMessageExpired(Message)}
+     * instead of being dispatched.
+     * @param deadline the last date the message is worth handling, in
+     *                 milliseconds of the Looper clock.
+     */
+    public Message withDeadline(long deadline) {
+        if (deadline <= 0) {
+            throw new IllegalArgumentException("invalid deadline '" + deadline + "'");
+        }
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Makes the message expire if it is not dispatched within
+     * <code>timeToLive</code> milliseconds after it is due, see
+     * {@link #withDeadline(long)}.
+     */
+    public Message withTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("invalid time to live '" + timeToLive + "'");
+        }
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Lets the Looper deliver the message, when sent for a later date, up to
+     * <code>slack</code> milliseconds late, so that timers due at close dates
+     * are delivered in a single wakeup. Overrides the slack of the Handler.
+     * @param slack the tolerance in milliseconds, 0 for none.
+     */
+    public Message withSlack(long slack) {
+        if (slack < 0) {
+            throw new IllegalArgumentException("invalid slack '" + slack + "'");
+        }
+        this.slack = slack;
+        return this;
+    }
+
+    /**
+     * @return the date the message is due, in milliseconds, or 0 for a
+     *         message sent at the front of the queue.
+     */
+    public long getWhen() {
+        return when;
+    }
+
     Message withTarget(Handler target) {
         this.target = target;
         return this;
@@ -52,6 +173,30 @@ public class Message<T> {
         return this;
     }
 
+    /**
+     * Adds a reference to the payload, when it is a {@link PooledBuffer}, so
+     * that it outlives the dispatch of the message. Needed to keep the message
+     * for later or to send it again, a dispatch releasing it each time.
+     * @return this message.
+     */
+    public Message retainPayload() {
+        if (payload instanceof PooledBuffer) {
+            ((PooledBuffer) payload).retain();
+        }
+        return this;
+    }
+
+    /**
+     * Drops the reference the message holds on its payload, when it is a
+     * {@link PooledBuffer}. Done by the Looper once the message has been
+     * dispatched, and by the queue for the removed messages.
+     */
+    public void releasePayload() {
+        if (payload instanceof PooledBuffer) {
+            ((PooledBuffer) payload).release();
+        }
+    }
+
     @Override
     public String toString() {
         return "Message{" +
@@ -68,11 +213,20 @@ public class Message<T> {
         return new Message();
     }
 
+    /**
+     * Copies a message, the copy shares the payload of the original without
+     * retaining it.
+     */
     public static Message copyFrom(Message m) {
-        return obtain()
+        final Message copy = obtain()
                 .withWhat(m.what)
                 .withTarget(m.target)
                 .withPayload(m.payload)
                 .withWhen(m.when);
+        copy.lane = m.lane;
+        copy.deadline = m.deadline;
+        copy.timeToLive = m.timeToLive;
+        copy.slack = m.slack;
+        return copy;
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import java.util.List;
+
+/**
+ * An intrusive doubly linked list of Messages. Messages are linked through
+ * their own prev/next fields, so adding or removing a Message never
+ * allocates, and each Message knows the list holding it which makes its
+ * removal O(1).
+ */
+class MessageList {
+
+    /**
+     * First and last messages of the list.
+     */
+    private Message head;
+    private Message tail;
+
+    /**
+     * Number of messages in the list.
+     */
+    private int size;
+
+    boolean isEmpty() {
+        return head == null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Message peek() {
+        return head;
+    }
+
+    Message peekLast() {
+        return tail;
+    }
+
+    /**
+     * Removes and returns the first message of the list, or null if the
+     * list is empty.
+     */
+    Message poll() {
+        final Message m = head;
+        if (m != null) {
+            remove(m);
+        }
+        return m;
+    }
+
+    void addFirst(Message m) {
+        m.list = this;
+        m.prev = null;
+        m.next = head;
+        if (head != null) {
+            head.prev = m;
+        } else {
+            tail = m;
+        }
+        head = m;
+        size++;
+    }
+
+    void addLast(Message m) {
+        m.list = this;
+        m.next = null;
+        m.prev = tail;
+        if (tail != null) {
+            tail.next = m;
+        } else {
+            head = m;
+        }
+        tail = m;
+        size++;
+    }
+
+    /**
+     * Inserts the message <m> after the last message of the list whose "when"
+     * is lower or equal to its own, keeping the list ordered. The list is
+     * scanned from its end since most messages are posted for later than the
+     * ones already queued.
+     */
+    void insertByWhen(Message m) {
+        Message cur = tail;
+        while (cur != null && cur.when > m.when) {
+            cur = cur.prev;
+        }
+        insertAfter(cur, m);
+    }
+
+    /**
+     * Inserts <m> right after <pos>, or at the front of the list when <pos>
+     * is null.
+     */
+    void insertAfter(Message pos, Message m) {
+        if (pos == null) {
+            addFirst(m);
+        } else if (pos == tail) {
+            addLast(m);
+        } else {
+            m.list = this;
+            m.prev = pos;
+            m.next = pos.next;
+            pos.next.prev = m;
+            pos.next = m;
+            size++;
+        }
+    }
+
+    /**
+     * Unlinks the message <m> from the list. The message must belong to
+     * this list.
+     */
+    void remove(Message m) {
+        if (m.prev != null) {
+            m.prev.next = m.next;
+        } else {
+            head = m.next;
+        }
+        if (m.next != null) {
+            m.next.prev = m.prev;
+        } else {
+            tail = m.prev;
+        }
+        m.list = null;
+        m.prev = null;
+        m.next = null;
+        size--;
+    }
+
+    /**
+     * Tells if the list holds a message for the target <h>, with the subject
+     * <what> when <matchWhat> is true.
+     */
+    boolean contains(Handler h, int what, boolean matchWhat) {
+        for (Message m = head; m != null; m = m.next) {
+            if (m.target == h && (!matchWhat || m.what == what)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the messages for the target <h> with the subject <what>.
+     * @return the number of removed messages.
+     */
+    int removeMessages(Handler h, int what) {
+        int removed = 0;
+        for (Message m = head; m != null; ) {
+            final Message next = m.next;
+            if (m.target == h && m.what == what) {
+                remove(m);
+                m.releasePayload();
+                removed++;
+            }
+            m = next;
+        }
+        return removed;
+    }
+
+    /**
+     * Adds a copy of each message for the target <h> to <into>.
+     */
+    void copyMessages(Handler h, List<Message> into) {
+        for (Message m = head; m != null; m = m.next) {
+            if (m.target == h) {
+                into.add(Message.copyFrom(m));
+            }
+        }
+    }
+}
@@ -4,26 +4,193 @@
 
 package fr.xioxoz.droid.os;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * A MessageQueue is queue of Messages ordered by their "when" timestamp.
  * The interface/implementation is inspired from the android.os.MessageQueue
  * provided by Android Open Source Project.
+ *
+ * Messages due beyond the spill horizon, when one is set, are kept in a
+ * SpillStore and paged back in the ordered list shortly before they are due.
+ *
+ * Due dates are read from the Clock of the queue, which is also used to wait
+ * for the next message.
+ *
+ * The queue may be split in priority lanes, each one ordered by "when". The
+ * most urgent lane with a due message is served first, unless a less urgent
+ * one has been skipped <quantum> times since it was last served.
+ *
+ * Messages taken after their expiry are flagged so that the Looper hands them
+ * to the expiry callback of their Handler. In earliest deadline first mode,
+ * the due message of a lane with the closest expiry is delivered first.
+ *
+ * In fair mode, each Handler has its own lists, its share of the queue, and
+ * the shares with a due message in a lane are served round-robin, <weight>
+ * messages at a time. Otherwise all the Handlers use the same share.
+ *
+ * A message sent for a later date with some slack has its due date aligned
+ * on a grid, the largest
+ * power of two milliseconds within its slack, so that the timers due at close
+ * dates end up due at the same date and are delivered in a single wakeup. The
+ * grids of different slacks are aligned on each other.
+ *
+ * Once a channel is registered, the queue waits for the next message in a
+ * Selector, and dispatches the readiness of the channels on the Looper thread
+ * before delivering the messages.
  */
 class MessageQueue {
 
     /**
-     * The list of messages currently in the queue.
+     * The messages of one Handler in fair mode, or of all of them otherwise,
+     * ordered by "when" in each lane.
      */
-    private final LinkedList<Message> messages = new LinkedList<>();
+    static final class Share {
+        final MessageQueue queue;
+        final int generation;
+        final MessageList[] lanes;
+
+        /**
+         * Messages served in a row from the share in its current turn.
+         */
+        int served;
+
+        /**
+         * Number of messages in the queue, spilled ones included, and its
+         * maximum.
+         */
+        int depth;
+        int maxDepth;
+
+        Share(MessageQueue queue, int generation, int count) {
+            this.queue = queue;
+            this.generation = generation;
+            this.lanes = new MessageList[count];
+            for (int i = 0; i < count; i++) {
+                lanes[i] = new MessageList();
+            }
+        }
+    }
+
+    /**
+     * Number of priority lanes, the most urgent being the first.
+     */
+    private int laneCount = 1;
+
+    /**
+     * The shares having messages in each lane, in round-robin order.
+     */
+    private List<List<Share>> rings = newRings(1);
+
+    /**
+     * The position of the share being served in each ring.
+     */
+    private int[] cursors = new int[1];
+
+    /**
+     * Number of times each lane had a due message but another one was served.
+     */
+    private int[] skipped = new int[1];
+
+    /**
+     * Number of skips after which a lane is served whatever its priority, 0
+     * for strict priorities.
+     */
+    private int quantum;
+
+    /**
+     * True to deliver the due messages by expiry rather than by "when".
+     */
+    private boolean earliestDeadlineFirst;
+
+    /**
+     * True when each Handler has its own share.
+     */
+    private boolean fair;
+
+    /**
+     * Changes each time the shares are rebuilt, older shares being dropped.
+     */
+    private int generation;
+
+    /**
+     * The share of all the Handlers when the queue is not fair.
+     */
+    private Share common = new Share(this, 0, 1);
+
+    /**
+     * The store of messages due beyond the horizon, null when spilling is
+     * disabled.
+     */
+    private SpillStore spill;
 
     /**
      * True when the queue is quitting.
      */
     private boolean quitting;
 
-    MessageQueue() {}
+    /**
+     * A change of the channels watched by the selector, applied on the
+     * Looper thread.
+     */
+    private static final class Registration {
+        final SelectableChannel channel;
+        final int ops;
+        final Looper.OnChannelEventListener listener;
+
+        Registration(SelectableChannel channel, int ops, Looper.OnChannelEventListener listener) {
+            this.channel = channel;
+            this.ops = ops;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The selector watching the channels, null until a channel is
+     * registered.
+     */
+    private volatile Selector selector;
+
+    /**
+     * The registrations not yet applied to the selector.
+     */
+    private final List<Registration> registrations = new ArrayList<>();
+
+    /**
+     * True when the Looper is, or is about to be, blocked in the selector.
+     */
+    private boolean selecting;
+
+    /**
+     * Number of times the Looper woke up, and estimate of the wakeups saved
+     * by aligning the due dates of the messages with slack.
+     */
+    private long wakeups;
+    private long savedWakeups;
+
+    /**
+     * The time source of the due dates.
+     */
+    private final Clock clock;
+
+    MessageQueue() {
+        this(MonotonicClock.INSTANCE);
+    }
+
+    MessageQueue(Clock clock) {
+        this.clock = clock;
+    }
+
+    Clock getClock() {
+        return clock;
+    }
 
     /**
      * Tells if a message is immediately available in the queue.
@@ -31,8 +198,14 @@ class MessageQueue {
      * Message if "next()" is called.
      */
     synchronized boolean isIdle() {
-        final long now = System.currentTimeMillis();
-        return messages.isEmpty() || now < messages.getFirst().when;
+        final long now = clock.millis();
+        pageInLocked(now);
+        for (int lane = 0; lane < laneCount; lane++) {
+            if (isDueLocked(lane, toNanos(now))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -40,62 +213,468 @@ class MessageQueue {
      * ordered and delivered according to their "when" value, the call may
      * block until the next message is available.
      */
-    synchronized Message next() {
+    Message next() {
+        // In nanoseconds.
         long nextWaitingTime = 0L;
 
         for (;;) {
-            // Wait for a message to be available.
-            waitForMessagesLocked(nextWaitingTime);
+            final Selector s = selector;
+            if (s != null) {
+                // Wait for a message or a channel out of the lock, so that
+                // messages can be enqueued meanwhile.
+                selectChannels(s, nextWaitingTime);
+            }
+
+            synchronized (this) {
+                selecting = false;
+                if (s == null) {
+                    // Wait for a message to be available.
+                    waitForMessagesLocked(nextWaitingTime);
+                }
+                if (nextWaitingTime != 0L) {
+                    wakeups++;
+                }
 
-            final long now = System.currentTimeMillis();
-            if (messages.isEmpty()) {
-                // No message, we have to wait until a new one is inserted.
+                final long nanos = clock.nanoTime();
+                pageInLocked(nanos / 1_000_000L);
+                final int lane = selectLaneLocked(nanos);
+                if (lane != -1) {
+                    // There's a message, deliver it.
+                    return pollLocked(selectShareLocked(lane, nanos), lane, nanos);
+                }
+
+                // No message for now, we have to wait until the next one is due,
+                // a new one is inserted or spilled messages have to be paged in.
                 nextWaitingTime = -1L;
+                for (int i = 0; i < laneCount; i++) {
+                    final List<Share> ring = rings.get(i);
+                    for (int j = 0; j < ring.size(); j++) {
+                        nextWaitingTime = earliest(nextWaitingTime,
+                                toNanos(ring.get(j).lanes[i].peek().when) - nanos);
+                    }
+                }
+                if (spill != null && !spill.isEmpty()) {
+                    nextWaitingTime = earliest(nextWaitingTime,
+                            Math.max(toNanos(spill.nextPageInTime()) - nanos, 1L));
+                }
 
-            } else if (now < messages.getFirst().when) {
-                // The next message is not scheduled for now, wait.
-                nextWaitingTime = Math.min(messages.getFirst().when - now, Long.MAX_VALUE);
+                // The queue is quitting and we have no more messages to deliver.
+                if (nextWaitingTime == -1L && quitting) {
+                    closeSelectorLocked();
+                    return null;
+                }
+
+                // From now on, the enqueued messages must wake the selector.
+                selecting = selector != null;
+            }
+        }
+    }
+
+    /**
+     * Applies the pending registrations, waits at most <time> ns (see
+     * waitForMessagesLocked) for the channels to be ready, then calls the
+     * listeners of the ready ones. Runs on the Looper thread, out of the lock.
+     */
+    private void selectChannels(Selector s, long time) {
+        final List<Registration> pending;
+        synchronized (this) {
+            if (registrations.isEmpty()) {
+                pending = null;
+            } else {
+                pending = new ArrayList<>(registrations);
+                registrations.clear();
+            }
+        }
+        if (pending != null) {
+            for (Registration r : pending) {
+                register(s, r);
+            }
+        }
 
+        try {
+            if (time == 0) {
+                if (s.keys().isEmpty()) {
+                    return;
+                }
+                s.selectNow();
+            } else if (time < 0) {
+                s.select();
             } else {
-                // There's a message, deliver it.
-                return messages.removeFirst();
+                // The selector counts in milliseconds, don't wake up early.
+                s.select((time + 999_999L) / 1_000_000L);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (Iterator<SelectionKey> it = s.selectedKeys().iterator(); it.hasNext(); ) {
+            final SelectionKey k = it.next();
+            it.remove();
+            if (!k.isValid()) {
+                continue;
+            }
+            final Looper.OnChannelEventListener l = (Looper.OnChannelEventListener) k.attachment();
+            final int ops = l.onChannelEvents(k.channel(), k.readyOps());
+            if (!k.isValid()) {
+                // Closed by the listener.
+                continue;
+            }
+            if (ops == 0) {
+                k.cancel();
+            } else if (ops != k.interestOps()) {
+                k.interestOps(ops);
+            }
+        }
+    }
+
+    private static void register(Selector s, Registration r) {
+        final SelectionKey k = r.channel.keyFor(s);
+        if (r.ops == 0) {
+            if (k != null) {
+                k.cancel();
+            }
+        } else if (k != null && k.isValid()) {
+            k.interestOps(r.ops);
+            k.attach(r.listener);
+        } else {
+            try {
+                r.channel.register(s, r.ops, r.listener);
+            } catch (ClosedChannelException e) {
+                // Nothing to watch anymore.
+            }
+        }
+    }
+
+    /**
+     * Asks the Looper to watch <channel> for <ops>, or to stop watching it
+     * when <ops> is 0.
+     */
+    void registerChannel(SelectableChannel channel, int ops, Looper.OnChannelEventListener listener) {
+        final Selector s;
+        synchronized (this) {
+            if (selector == null) {
+                try {
+                    selector = Selector.open();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            s = selector;
+            registrations.add(new Registration(channel, ops, listener));
+            // The Looper may be waiting without the selector yet.
+            notify();
+            selecting = false;
+        }
+        s.wakeup();
+    }
+
+    private void closeSelectorLocked() {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more to do.
+            }
+            selector = null;
+        }
+    }
+
+    /**
+     * Wakes the Looper up so that it looks at the queue again.
+     */
+    private void wakeLocked() {
+        notify();
+        if (selecting) {
+            selecting = false;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Tells if a message of the <lane> is due at <nanos>.
+     */
+    private boolean isDueLocked(int lane, long nanos) {
+        final List<Share> ring = rings.get(lane);
+        for (int i = 0; i < ring.size(); i++) {
+            if (nanos >= toNanos(ring.get(i).lanes[lane].peek().when)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the lane of the next message to deliver at <nanos>, or -1 if no
+     * message is due.
+     */
+    private int selectLaneLocked(long nanos) {
+        if (laneCount == 1) {
+            return isDueLocked(0, nanos) ? 0 : -1;
+        }
+
+        int selected = -1;
+        for (int i = 0; i < laneCount; i++) {
+            if (!isDueLocked(i, nanos)) {
+                continue;
+            }
+            if (selected == -1 || (quantum > 0 && skipped[i] >= quantum && skipped[selected] < quantum)) {
+                selected = i;
+            }
+        }
+        if (selected == -1) {
+            return -1;
+        }
+
+        for (int i = 0; i < laneCount; i++) {
+            if (i != selected && isDueLocked(i, nanos)) {
+                skipped[i]++;
+            }
+        }
+        skipped[selected] = 0;
+        return selected;
+    }
+
+    /**
+     * Picks the share of the next message to deliver from the <lane>, which
+     * has a due message at <nanos>. A share keeps its turn until it served
+     * <weight> messages in a row or has no more due message.
+     */
+    private Share selectShareLocked(int lane, long nanos) {
+        final List<Share> ring = rings.get(lane);
+        if (ring.size() == 1) {
+            return ring.get(0);
+        }
+
+        for (;;) {
+            if (cursors[lane] >= ring.size()) {
+                cursors[lane] = 0;
+            }
+            final Share s = ring.get(cursors[lane]);
+            final Message head = s.lanes[lane].peek();
+            if (nanos >= toNanos(head.when)) {
+                if (++s.served >= head.target.getWeight()) {
+                    s.served = 0;
+                    cursors[lane]++;
+                }
+                return s;
+            }
+            s.served = 0;
+            cursors[lane]++;
+        }
+    }
+
+    /**
+     * Takes the next message to deliver from the <lane> of the share <s>,
+     * whose head is due at <nanos>, and flags it when expired.
+     */
+    private Message pollLocked(Share s, int lane, long nanos) {
+        final long now = nanos / 1_000_000L;
+        final MessageList list = s.lanes[lane];
+        Message m = list.peek();
+        if (earliestDeadlineFirst && m.when != 0) {
+            // Expired messages are cheap to get rid of, they go first.
+            for (Message cur = m; cur != null && nanos >= toNanos(cur.when); cur = cur.next) {
+                if (cur.expiry < now) {
+                    m = cur;
+                    break;
+                }
+                if (cur.expiry < m.expiry) {
+                    m = cur;
+                }
+            }
+        }
+        list.remove(m);
+        s.depth--;
+        if (list.isEmpty()) {
+            leaveRingLocked(s, lane);
+        }
+        m.expired = m.expiry < now;
+        return m;
+    }
+
+    /**
+     * Provides the share of the messages for <h>, created if needed.
+     */
+    private Share shareOfLocked(Handler h) {
+        if (!fair) {
+            return common;
+        }
+        Share s = h.share;
+        if (s == null || s.queue != this || s.generation != generation) {
+            s = new Share(this, generation, laneCount);
+            h.share = s;
+        }
+        return s;
+    }
+
+    /**
+     * Provides the share of the messages for <h>, or null when it has none.
+     */
+    private Share existingShareLocked(Handler h) {
+        if (!fair) {
+            return common;
+        }
+        final Share s = h.share;
+        return s != null && s.queue == this && s.generation == generation ? s : null;
+    }
+
+    /**
+     * Adds <m>, whose "when" is set, to the queue or to the spill store. A
+     * message for now is put at the front of its lane when <atFront> is set.
+     * <requested> is the due date asked by the sender, before its alignment.
+     */
+    private void addLocked(Message m, boolean atFront, long requested) {
+        final Share s = shareOfLocked(m.target);
+        s.depth++;
+        s.maxDepth = Math.max(s.maxDepth, s.depth);
+        if (m.when == 0 && atFront) {
+            final int lane = laneOf(m, laneCount);
+            final MessageList list = s.lanes[lane];
+            if (list.isEmpty()) {
+                rings.get(lane).add(s);
             }
+            list.addFirst(m);
 
-            // The queue is quitting and we have no more messages to deliver.
-            if (nextWaitingTime == -1L && quitting) {
-                return null;
+        } else if (m.when != 0 && spill != null && spill.accepts(m.when, clock.millis())) {
+            // Far in the future, keep it out of the ordered lists. The
+            // looper is still notified to plan the page in.
+            spill.add(m);
+
+        } else {
+            if (m.when != 0 && spill != null) {
+                // The spilled messages due at the same date were sent before
+                // and must stay ahead of it.
+                spill.pageInUpTo(m.when, this);
+            }
+            requeueLocked(m);
+            if (requested != m.when && m.prev != null && m.prev.when == m.when) {
+                // Delivered with the previous one instead of on its own.
+                savedWakeups++;
             }
         }
     }
 
+    /**
+     * Aligns the due date <when> of <m> on the grid of its slack, when it is
+     * a later date: the messages due now are never delayed.
+     * @param requested the slack of the sending, -1 for the one of the
+     *                  message or of its Handler.
+     */
+    private long alignLocked(Message m, long when, long requested) {
+        final long slack = requested >= 0 ? requested : m.slack >= 0 ? m.slack : m.target.getSlack();
+        if (slack == 0 || when == 0 || when <= clock.millis()) {
+            return when;
+        }
+        final long grid = Long.highestOneBit(slack);
+        if (when > Long.MAX_VALUE - grid) {
+            return when;
+        }
+        return (when + grid - 1) / grid * grid;
+    }
+
+    /**
+     * Inserts <m>, already counted in the depth of its share, in its lane.
+     */
+    void requeueLocked(Message m) {
+        final int lane = laneOf(m, laneCount);
+        final Share s = shareOfLocked(m.target);
+        final MessageList list = s.lanes[lane];
+        if (list.isEmpty()) {
+            rings.get(lane).add(s);
+        }
+        list.insertByWhen(m);
+    }
+
+    private void leaveRingLocked(Share s, int lane) {
+        final List<Share> ring = rings.get(lane);
+        final int index = ring.indexOf(s);
+        ring.remove(index);
+        if (index < cursors[lane]) {
+            cursors[lane]--;
+        }
+        s.served = 0;
+    }
+
+    /**
+     * Provides the date after which <m>, due at <due>, expires.
+     */
+    private static long expiryOf(Message m, long due) {
+        long expiry = m.deadline == 0 ? Long.MAX_VALUE : m.deadline;
+        if (m.timeToLive >= 0 && due <= Long.MAX_VALUE - m.timeToLive) {
+            expiry = Math.min(expiry, due + m.timeToLive);
+        }
+        return expiry;
+    }
+
+    /**
+     * Provides the shortest of two waiting times, -1 meaning forever.
+     */
+    private static long earliest(long wait, long other) {
+        return wait == -1L ? other : Math.min(wait, other);
+    }
+
+    /**
+     * Provides the lane of <m> in a queue of <count> lanes.
+     */
+    static int laneOf(Message m, int count) {
+        return Math.min(m.lane >= 0 ? m.lane : m.target.getLane(), count - 1);
+    }
+
+    private static List<List<Share>> newRings(int count) {
+        final List<List<Share>> rings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rings.add(new ArrayList<>());
+        }
+        return rings;
+    }
+
     /**
      * Wait for a period of time provided by the <time> parameter.
      * It blocks the following ways:
-     *  - if time > 0, it waits for time ms,
+     *  - if time > 0, it waits for time ns,
      *  - if time == 0, it doesn't wait,
      *  - if time < 0, it waits until until someone notifies.
      */
     private void waitForMessagesLocked(long time) {
+        if (time == 0) {
+            return;
+        }
         try {
-            if (time == 0) {
-                return;
-
-            } else if (time > 0) {
-                wait(time);
-
-            } else {
-                wait();
-            }
+            clock.await(this, time);
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * Converts a due date to nanoseconds, saturating far away dates.
+     */
+    private static long toNanos(long millis) {
+        return millis > Long.MAX_VALUE / 1_000_000L ? Long.MAX_VALUE : millis * 1_000_000L;
+    }
+
+    /**
+     * Moves the spilled messages getting close to <now> in the ordered lists.
+     */
+    private void pageInLocked(long now) {
+        if (spill != null && !spill.isEmpty()) {
+            spill.pageIn(now, this);
+        }
+    }
+
     /**
      * Adds a message <m> to the queue using <when> to insert the message at
      * the right place in the queue.
      */
     boolean enqueueMessage(Message m, long when) {
+        return enqueueMessage(m, when, -1);
+    }
+
+    /**
+     * Adds a message like enqueueMessage(), with the slack of this sending
+     * instead of the one of the message or its Handler, -1 to keep theirs.
+     */
+    boolean enqueueMessage(Message m, long when, long slack) {
         if (m.target == null) {
             throw new IllegalArgumentException("can't enqueue Message without target Handler");
         }
@@ -103,29 +682,108 @@ class MessageQueue {
         synchronized (this) {
             if (quitting) {
                 // The queue is in quitting state, we won't accept new messages
-                // and wait for the looper to empty us.
+                // and wait for the looper to empty us. The message will never
+                // be dispatched, its payload is released like a removed one.
+                m.releasePayload();
                 return false;
             }
+            if (m.list != null) {
+                throw new IllegalStateException("Message is already enqueued");
+            }
+
+            m.generation++;
+            m.when = alignLocked(m, when, slack);
+            m.expiry = expiryOf(m, when == 0 ? clock.millis() : m.when);
+            addLocked(m, true, when);
+            wakeLocked();
+        }
+
+        return true;
+    }
 
-            m.when = when;
-            if (when == 0 || messages.isEmpty() || when < messages.getFirst().when) {
-                messages.addFirst(m);
+    /**
+     * Adds a message like enqueueMessage() and provides the token to cancel
+     * it.
+     */
+    synchronized MessageToken enqueueMessageWithToken(Message m, long when) {
+        if (!enqueueMessage(m, when)) {
+            return MessageToken.NONE;
+        }
+        return new MessageToken(this, m, m.generation);
+    }
 
-            } else if (when >= messages.getLast().when) {
-                messages.addLast(m);
+    /**
+     * Tells if the message of the <token> is still in the queue.
+     */
+    synchronized boolean isPending(MessageToken token) {
+        return token.message.generation == token.generation && token.message.list != null;
+    }
 
-            } else {
-                // Insert the element at the right position in the list.
-                int pos = 0;
-                for (Message cur : messages) {
-                    if (cur.when > when) {
-                        break;
-                    }
-                    pos++;
+    /**
+     * Unlinks the message of the <token> from its list.
+     * @return false if it was not in the queue anymore.
+     */
+    synchronized boolean cancel(MessageToken token) {
+        final Message m = token.message;
+        if (m.generation != token.generation || m.list == null) {
+            return false;
+        }
+
+        // The list of the message tells where it is, whatever its lane says
+        // now.
+        final Share s = existingShareLocked(m.target);
+        int lane = 0;
+        while (lane < s.lanes.length && s.lanes[lane] != m.list) {
+            lane++;
+        }
+        if (lane < s.lanes.length) {
+            s.lanes[lane].remove(m);
+            if (s.lanes[lane].isEmpty()) {
+                leaveRingLocked(s, lane);
+            }
+        } else if (spill != null && spill.holds(m)) {
+            spill.remove(m);
+        } else {
+            throw new IllegalStateException("message not found in its queue");
+        }
+        s.depth--;
+        m.releasePayload();
+        return true;
+    }
+
+    /**
+     * Adds the messages <ms> at the front of the queue, at once and keeping
+     * their order: the first message of the list is the next one delivered
+     * from its lane.
+     */
+    boolean enqueueMessagesAtFront(List<Message> ms) {
+        for (int i = 0; i < ms.size(); i++) {
+            if (ms.get(i).target == null) {
+                throw new IllegalArgumentException("can't enqueue Message without target Handler");
+            }
+        }
+
+        synchronized (this) {
+            if (quitting) {
+                for (int i = 0; i < ms.size(); i++) {
+                    ms.get(i).releasePayload();
                 }
-                messages.add(pos, m);
+                return false;
             }
-            notify();
+            for (int i = 0; i < ms.size(); i++) {
+                if (ms.get(i).list != null) {
+                    throw new IllegalStateException("Message is already enqueued");
+                }
+            }
+
+            for (int i = ms.size() - 1; i >= 0; i--) {
+                final Message m = ms.get(i);
+                m.generation++;
+                m.when = 0;
+                m.expiry = expiryOf(m, clock.millis());
+                addLocked(m, true, 0);
+            }
+            wakeLocked();
         }
 
         return true;
@@ -140,15 +798,16 @@ class MessageQueue {
             return false;
         }
 
-        synchronized (this) {
-            for (Message m : messages) {
-                if (m.target == h && m.what == what) {
-                    return true;
-                }
+        final Share s = existingShareLocked(h);
+        if (s == null || s.depth == 0) {
+            return false;
+        }
+        for (MessageList lane : s.lanes) {
+            if (lane.contains(h, what, true)) {
+                return true;
             }
         }
-
-        return false;
+        return spill != null && spill.contains(h, what, true);
     }
 
     /**
@@ -159,13 +818,44 @@ class MessageQueue {
             return false;
         }
 
-        for (Message m : messages) {
-            if (m.target == h) {
+        final Share s = existingShareLocked(h);
+        if (s == null || s.depth == 0) {
+            return false;
+        }
+        if (fair) {
+            // The share only holds messages for <h>.
+            return true;
+        }
+        for (MessageList lane : s.lanes) {
+            if (lane.contains(h, 0, false)) {
                 return true;
             }
         }
+        return spill != null && spill.contains(h, 0, false);
+    }
 
-        return false;
+    /**
+     * Provides a copy of the messages for the target <h>, in delivery order
+     * within each lane and ordered by "when" across lanes.
+     */
+    synchronized List<Message> copyMessages(Handler h) {
+        final List<Message> copies = new ArrayList<>();
+        final Share s = existingShareLocked(h);
+        if (s == null || s.depth == 0) {
+            return copies;
+        }
+        for (MessageList lane : s.lanes) {
+            lane.copyMessages(h, copies);
+        }
+        // With a single lane, spilled messages are all due after the ones of
+        // the list and only their slots need to be sorted. The sort is stable
+        // so messages sent at the front keep their order.
+        final int first = laneCount == 1 ? copies.size() : 0;
+        if (spill != null) {
+            spill.copyMessages(h, copies);
+        }
+        copies.subList(first, copies.size()).sort((a, b) -> Long.compare(a.when, b.when));
+        return copies;
     }
 
     /**
@@ -177,11 +867,143 @@ class MessageQueue {
             throw new IllegalArgumentException("can't remove Message(s) without target handler");
         }
 
-        messages.removeIf(m -> m.target == h && m.what == what);
+        final Share s = existingShareLocked(h);
+        if (s == null || s.depth == 0) {
+            return;
+        }
+        for (int lane = 0; lane < laneCount; lane++) {
+            final int removed = s.lanes[lane].removeMessages(h, what);
+            s.depth -= removed;
+            if (removed > 0 && s.lanes[lane].isEmpty()) {
+                leaveRingLocked(s, lane);
+            }
+        }
+        if (spill != null) {
+            s.depth -= spill.removeMessages(h, what);
+        }
+    }
+
+    /**
+     * Provides the number of messages for <h> in the queue, or -1 when the
+     * queue is not fair.
+     */
+    synchronized int getDepth(Handler h) {
+        if (!fair) {
+            return -1;
+        }
+        final Share s = existingShareLocked(h);
+        return s == null ? 0 : s.depth;
+    }
+
+    /**
+     * Provides the largest number of messages for <h> seen in the queue since
+     * fair mode was enabled, or -1 when the queue is not fair.
+     */
+    synchronized int getMaxDepth(Handler h) {
+        if (!fair) {
+            return -1;
+        }
+        final Share s = existingShareLocked(h);
+        return s == null ? 0 : s.maxDepth;
+    }
+
+    /**
+     * Provides the number of times the Looper woke up to look at the queue.
+     */
+    synchronized long getWakeupCount() {
+        return wakeups;
+    }
+
+    /**
+     * Provides the number of delayed messages that did not need a wakeup of
+     * their own thanks to their slack.
+     */
+    synchronized long getSavedWakeupCount() {
+        return savedWakeups;
+    }
+
+    /**
+     * Defines the distance from now after which messages are spilled out of
+     * the ordered list. A zero horizon disables spilling.
+     */
+    synchronized void setSpillHorizon(long horizon) {
+        if (horizon < 0) {
+            throw new IllegalArgumentException("invalid spill horizon '" + horizon + "'");
+        }
+
+        if (spill != null) {
+            spill.drainTo(this);
+        }
+        spill = horizon == 0 ? null : new SpillStore(horizon);
+        wakeLocked();
+    }
+
+    /**
+     * Splits the queue in <count> priority lanes, the pending messages being
+     * moved to their new lane.
+     */
+    synchronized void setLanes(int count, int quantum) {
+        if (count < 1) {
+            throw new IllegalArgumentException("invalid lane count '" + count + "'");
+        }
+        if (quantum < 0) {
+            throw new IllegalArgumentException("invalid quantum '" + quantum + "'");
+        }
+
+        this.quantum = quantum;
+        rebuildLocked(count, fair);
+    }
+
+    /**
+     * Enables or disables fair mode, the pending messages being moved to
+     * their new share.
+     */
+    synchronized void setFair(boolean enabled) {
+        if (enabled != fair) {
+            rebuildLocked(laneCount, enabled);
+        }
+    }
+
+    synchronized void setEarliestDeadlineFirst(boolean enabled) {
+        earliestDeadlineFirst = enabled;
+    }
+
+    /**
+     * Drops the shares and queues the pending messages again, in <count>
+     * lanes.
+     */
+    private void rebuildLocked(int count, boolean fair) {
+        if (spill != null) {
+            spill.drainTo(this);
+        }
+        final List<Message> pending = new ArrayList<>();
+        for (int lane = 0; lane < laneCount; lane++) {
+            for (Share s : rings.get(lane)) {
+                final MessageList list = s.lanes[lane];
+                for (Message m = list.poll(); m != null; m = list.poll()) {
+                    pending.add(m);
+                }
+            }
+        }
+
+        laneCount = count;
+        rings = newRings(count);
+        cursors = new int[count];
+        skipped = new int[count];
+        this.fair = fair;
+        generation++;
+        common = new Share(this, generation, count);
+        for (Message m : pending) {
+            addLocked(m, false, m.when);
+        }
+        wakeLocked();
     }
 
     synchronized void quit() {
         quitting = true;
         notifyAll();
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 }
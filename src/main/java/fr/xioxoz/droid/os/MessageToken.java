@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+/**
+ * Identifies one sending of a Message, so that this message, and only this
+ * one, can be cancelled while it is pending, see
+ * {@link Messenger#cancel(MessageToken)}. The token stays bound to that
+ * sending: once the message is delivered, cancelled or sent again, it cancels
+ * nothing.
+ */
+public final class MessageToken {
+
+    /**
+     * A token cancelling nothing, returned for the messages refused by their
+     * queue because its Looper is quitting.
+     */
+    public static final MessageToken NONE = new MessageToken(null, null, 0);
+
+    final MessageQueue queue;
+    final Message message;
+
+    /**
+     * The generation of the message when it was enqueued.
+     */
+    final int generation;
+
+    MessageToken(MessageQueue queue, Message message, int generation) {
+        this.queue = queue;
+        this.message = message;
+        this.generation = generation;
+    }
+
+    /**
+     * @return true if the message is still waiting in its queue.
+     */
+    public boolean isPending() {
+        return queue != null && queue.isPending(this);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageToken{" +
+                "message=" + message +
+                ", generation=" + generation +
+                '}';
+    }
+}
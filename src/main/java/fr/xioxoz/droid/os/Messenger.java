@@ -51,4 +51,49 @@ public interface Messenger {
      * @param time the delivery time, expressed in milliseconds.
      */
     void sendMessageAtTime(Message m, long time);
+
+    /**
+     * Sends the given Message to the Messenger for delivery. Messengers
+     * without tokens just send it.
+     * @param m the Message to send.
+     * @return the token to cancel this sending, null if not supported.
+     */
+    default MessageToken sendMessageWithToken(Message m) {
+        sendMessage(m);
+        return null;
+    }
+
+    /**
+     * Sends the given Message to the Messenger for delivery in
+     * <code>delay</code> milliseconds.
+     * @param m the Message to deliver.
+     * @param delay the delay after which the Message has to be delivered.
+     * @return the token to cancel this sending, null if not supported.
+     */
+    default MessageToken sendMessageDelayedWithToken(Message m, long delay) {
+        sendMessageDelayed(m, delay);
+        return null;
+    }
+
+    /**
+     * Sends the given Message for delivery at the specified <code>time</code>.
+     * @param m the Message to deliver.
+     * @param time the delivery time, expressed in milliseconds.
+     * @return the token to cancel this sending, null if not supported.
+     */
+    default MessageToken sendMessageAtTimeWithToken(Message m, long time) {
+        sendMessageAtTime(m, time);
+        return null;
+    }
+
+    /**
+     * Removes the Message sent with the token from the queue, without
+     * touching the other Messages, in constant time.
+     * @param token a token returned by this Messenger.
+     * @return true if the Message was pending and is cancelled, always
+     *         false for the Messengers without tokens.
+     */
+    default boolean cancel(MessageToken token) {
+        return false;
+    }
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+/**
+ * The default Clock, based on <code>System.nanoTime</code>. It is aligned on
+ * the wall clock once, when loaded, so that its time can be compared with
+ * <code>System.currentTimeMillis</code>, but it is not affected by the later
+ * changes of the wall clock.
+ */
+public final class MonotonicClock implements Clock {
+
+    public static final MonotonicClock INSTANCE = new MonotonicClock();
+
+    // Offset from System.nanoTime to the wall clock, in nanoseconds.
+    private final long offset;
+
+    private MonotonicClock() {
+        offset = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime() + offset;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted direct ByteBuffer of a {@link BufferPool}. The buffer
+ * returns to its pool when the last reference is released, and must not be
+ * used afterwards.
+ */
+public final class PooledBuffer {
+
+    /**
+     * What the leak detection needs to know about the buffer, without keeping
+     * it reachable.
+     */
+    static final class State implements Runnable {
+        private final BufferPool pool;
+        final AtomicInteger refCount = new AtomicInteger();
+        volatile Throwable acquisition;
+
+        State(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void run() {
+            pool.collected(this);
+        }
+    }
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    final State state;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.state = new State(pool);
+    }
+
+    void acquired(Throwable acquisition) {
+        buffer.clear();
+        state.acquisition = acquisition;
+        state.refCount.set(1);
+    }
+
+    /**
+     * @return the underlying direct buffer.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Adds a reference to the buffer, for instance to keep the payload of a
+     * message after it has been dispatched.
+     * @return this buffer.
+     */
+    public PooledBuffer retain() {
+        for (;;) {
+            final int count = state.refCount.get();
+            if (count == 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+            if (state.refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference to the buffer.
+     * @return true if it was the last one and the buffer went back to its
+     *         pool.
+     */
+    public boolean release() {
+        for (;;) {
+            final int count = state.refCount.get();
+            if (count == 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+            if (state.refCount.compareAndSet(count, count - 1)) {
+                if (count == 1) {
+                    state.acquisition = null;
+                    pool.recycle(this);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the number of references to the buffer, 0 once released.
+     */
+    public int refCount() {
+        return state.refCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledBuffer{" +
+                "buffer=" + buffer +
+                ", refCount=" + refCount() +
+                '}';
+    }
+}
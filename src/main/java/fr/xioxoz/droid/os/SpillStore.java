@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A SpillStore keeps the Messages due far in the future out of the
+ * MessageQueue ordered list. Messages are grouped in unordered slots of
+ * <horizon> milliseconds, so storing one is O(1) whatever the number of
+ * pending timers, and a slot is paged back in the queue as a whole once its
+ * start gets closer than the horizon.
+ */
+class SpillStore {
+
+    /**
+     * Slots of messages indexed by their "when" divided by the horizon.
+     */
+    private final TreeMap<Long, MessageList> slots = new TreeMap<>();
+
+    /**
+     * Width of a slot and distance from now after which messages are spilled.
+     */
+    private final long horizon;
+
+    /**
+     * Number of messages in the store.
+     */
+    private int size;
+
+    SpillStore(long horizon) {
+        if (horizon <= 0) {
+            throw new IllegalArgumentException("invalid spill horizon '" + horizon + "'");
+        }
+        this.horizon = horizon;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Tells if a message due at <when> is far enough from <now> to be
+     * spilled in the store.
+     */
+    boolean accepts(long when, long now) {
+        return when - now > horizon;
+    }
+
+    void add(Message m) {
+        slots.computeIfAbsent(m.when / horizon, s -> new MessageList()).addLast(m);
+        size++;
+    }
+
+    /**
+     * Provides the date at which the first slot has to be paged in, or
+     * Long.MAX_VALUE if the store is empty.
+     */
+    long nextPageInTime() {
+        if (slots.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return slots.firstKey() * horizon - horizon;
+    }
+
+    /**
+     * Moves the slots starting before <now> + horizon to the ordered lists
+     * of the <into> queue.
+     */
+    void pageIn(long now, MessageQueue into) {
+        while (!slots.isEmpty() && nextPageInTime() <= now) {
+            final MessageList slot = slots.pollFirstEntry().getValue();
+            for (Message m = slot.poll(); m != null; m = slot.poll()) {
+                into.requeueLocked(m);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Moves the slots which may hold messages due at or before <when> to the
+     * ordered lists of the <into> queue.
+     */
+    void pageInUpTo(long when, MessageQueue into) {
+        pageIn(when - horizon, into);
+    }
+
+    /**
+     * Moves all the messages to the ordered lists of the <into> queue.
+     */
+    void drainTo(MessageQueue into) {
+        pageIn(Long.MAX_VALUE, into);
+    }
+
+    /**
+     * Tells if the enqueued message <m> is in the store.
+     */
+    boolean holds(Message m) {
+        return m.list != null && slots.get(m.when / horizon) == m.list;
+    }
+
+    /**
+     * Unlinks the message <m>, which must be in the store.
+     */
+    void remove(Message m) {
+        final MessageList slot = m.list;
+        slot.remove(m);
+        size--;
+        if (slot.isEmpty()) {
+            slots.remove(m.when / horizon);
+        }
+    }
+
+    boolean contains(Handler h, int what, boolean matchWhat) {
+        for (MessageList slot : slots.values()) {
+            if (slot.contains(h, what, matchWhat)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void copyMessages(Handler h, List<Message> into) {
+        for (MessageList slot : slots.values()) {
+            slot.copyMessages(h, into);
+        }
+    }
+
+    /**
+     * Removes the messages for the target <h> with the subject <what>.
+     * @return the number of removed messages.
+     */
+    int removeMessages(Handler h, int what) {
+        int removed = 0;
+        for (Iterator<MessageList> it = slots.values().iterator(); it.hasNext(); ) {
+            final MessageList slot = it.next();
+            removed += slot.removeMessages(h, what);
+            if (slot.isEmpty()) {
+                it.remove();
+            }
+        }
+        size -= removed;
+        return removed;
+    }
+}
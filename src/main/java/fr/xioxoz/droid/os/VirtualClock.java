@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A Clock whose time only moves when asked to. A Looper using it doesn't
+ * wait for its delayed messages: when the next message is not due yet, the
+ * clock jumps to its due date. Timers of days are then run in no time.</p>
+ *
+ * <p>The Looper still waits when its queue is empty, for messages sent by
+ * other threads. Loopers sharing a VirtualClock move it forward concurrently:
+ * the order of their messages is only kept for a single Looper.</p>
+ */
+public final class VirtualClock implements Clock {
+
+    private final AtomicLong now;
+
+    /**
+     * Creates a clock starting at the current time of the default clock.
+     */
+    public VirtualClock() {
+        this(MonotonicClock.INSTANCE.nanoTime());
+    }
+
+    /**
+     * Creates a clock.
+     * @param start the initial time, in nanoseconds, of at least one
+     *              millisecond: a due date of 0 means the front of the queue.
+     */
+    public VirtualClock(long start) {
+        if (start < 1_000_000L) {
+            throw new IllegalArgumentException("invalid start time '" + start + "'");
+        }
+        now = new AtomicLong(start);
+    }
+
+    @Override
+    public long nanoTime() {
+        return now.get();
+    }
+
+    /**
+     * Moves the clock forward.
+     * @param nanos the time to add, in nanoseconds.
+     */
+    public void advance(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("cannot move the clock backward");
+        }
+        now.addAndGet(nanos);
+    }
+
+    @Override
+    public void await(Object lock, long nanos) throws InterruptedException {
+        if (nanos < 0) {
+            lock.wait();
+            return;
+        }
+        // Jump to the end of the wait, unless another waiter went further.
+        final long start = now.get();
+        now.accumulateAndGet(start + nanos, Math::max);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Message;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A DispatchTable resolves, for each state of a StateGraph and each message
+ * code, the ordered list of receivers the message has to be given to: the
+ * {@link OnMessage} methods and <code>processMessage</code> overrides of the
+ * state and its ancestors. Dispatching a message is then a single lookup.
+ * The table also tells which messages are deferred automatically in each
+ * state, and which ones trigger a declared transition.
+ */
+class DispatchTable {
+
+    private static final MethodType RECEIVER_TYPE =
+            MethodType.methodType(boolean.class, State.class, Message.class);
+
+    /**
+     * A method of a state able to process a message, or a declared
+     * transition of the state.
+     */
+    static final class Receiver {
+        /**
+         * Index of the state owning the method.
+         */
+        final int state;
+
+        /**
+         * The state owning the method.
+         */
+        private final State target;
+
+        /**
+         * The annotated method, null for processMessage.
+         */
+        private final MethodHandle handle;
+
+        /**
+         * Index of the state to transition to, -1 if the receiver is a method.
+         */
+        final int transition;
+
+        private Receiver(int state, State target, MethodHandle handle, int transition) {
+            this.state = state;
+            this.target = target;
+            this.handle = handle;
+            this.transition = transition;
+        }
+
+        /**
+         * Gives the message to the method. A transition always handles the
+         * message, it is up to the caller to perform it.
+         * @return true if the message has been handled.
+         */
+        boolean process(Message m) {
+            if (transition != -1) {
+                return true;
+            }
+            if (handle == null) {
+                return target.processMessage(m);
+            }
+
+            try {
+                return (boolean) handle.invokeExact(target, m);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+
+    /**
+     * The message codes having an annotated method, sorted. Their position
+     * in the array is their column in the table, the last column is used for
+     * all the other codes.
+     */
+    private final int[] whats;
+
+    /**
+     * The receivers by state index and column.
+     */
+    private final Receiver[][][] receivers;
+
+    /**
+     * True by state index and column when the message has to be deferred.
+     */
+    private final boolean[][] deferred;
+
+    /**
+     * Builds the table of a hierarchy.
+     * @param graph the hierarchy.
+     * @param deferrals the codes of the messages to defer while in each
+     *                  state or one of its children, by state index. May be
+     *                  null.
+     * @param transitions the declared transitions of each state, by state
+     *                    index, as pairs of message code and destination
+     *                    state index. May be null.
+     */
+    DispatchTable(StateGraph graph, int[][] deferrals, int[][] transitions) {
+        final int count = graph.size();
+
+        // Collect the annotated methods of each state.
+        final List<Map<Integer, MethodHandle>> handles = new ArrayList<>(count);
+        final Set<Integer> codes = new TreeSet<>();
+        for (State s : graph.states) {
+            Map<Integer, MethodHandle> h = annotatedMethodsOf(s);
+            codes.addAll(h.keySet());
+            handles.add(h);
+        }
+        if (deferrals != null) {
+            for (int[] d : deferrals) {
+                if (d != null) {
+                    Arrays.stream(d).forEach(codes::add);
+                }
+            }
+        }
+        if (transitions != null) {
+            for (int[] t : transitions) {
+                for (int i = 0; t != null && i < t.length; i += 2) {
+                    codes.add(t[i]);
+                }
+            }
+        }
+        whats = codes.stream().mapToInt(Integer::intValue).toArray();
+
+        deferred = new boolean[count][whats.length + 1];
+        if (deferrals != null) {
+            for (int state = 0; state < count; state++) {
+                for (int s = state; s != -1; s = graph.parents[s]) {
+                    if (deferrals[s] != null) {
+                        for (int what : deferrals[s]) {
+                            deferred[state][column(what)] = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Resolve the chains: each state, then its ancestors, until a root.
+        receivers = new Receiver[count][whats.length + 1][];
+        final List<Receiver> chain = new ArrayList<>();
+        for (int state = 0; state < count; state++) {
+            for (int column = 0; column <= whats.length; column++) {
+                chain.clear();
+                for (int s = state; s != -1; s = graph.parents[s]) {
+                    final State target = graph.states[s];
+                    final int to = column < whats.length ? transitionOf(transitions, s, whats[column]) : -1;
+                    if (to != -1) {
+                        // Handles the message: nothing above can receive it.
+                        chain.add(new Receiver(s, target, null, to));
+                        break;
+                    }
+                    final MethodHandle h = column < whats.length ? handles.get(s).get(whats[column]) : null;
+                    if (h != null) {
+                        chain.add(new Receiver(s, target, h, -1));
+                    } else if (overridesProcessMessage(target)) {
+                        chain.add(new Receiver(s, target, null, -1));
+                    }
+                }
+                receivers[state][column] = chain.toArray(new Receiver[0]);
+            }
+        }
+    }
+
+    /**
+     * Provides the column of the message code <what>.
+     */
+    int column(int what) {
+        final int column = Arrays.binarySearch(whats, what);
+        return column < 0 ? whats.length : column;
+    }
+
+    /**
+     * Provides the receivers of the messages of a <column> when the machine
+     * is in the state <state>, in dispatch order.
+     */
+    Receiver[] receivers(int state, int column) {
+        return receivers[state][column];
+    }
+
+    /**
+     * Tells if the messages of a <column> are deferred when the machine is in
+     * the state <state>.
+     */
+    boolean isDeferred(int state, int column) {
+        return deferred[state][column];
+    }
+
+    private static int transitionOf(int[][] transitions, int state, int what) {
+        if (transitions == null || transitions[state] == null) {
+            return -1;
+        }
+        for (int i = 0; i < transitions[state].length; i += 2) {
+            if (transitions[state][i] == what) {
+                return transitions[state][i + 1];
+            }
+        }
+        return -1;
+    }
+
+    private static boolean overridesProcessMessage(State s) {
+        try {
+            return s.getClass().getMethod("processMessage", Message.class).getDeclaringClass() != State.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<Integer, MethodHandle> annotatedMethodsOf(State s) {
+        final Map<Integer, MethodHandle> handles = new HashMap<>();
+        final Set<String> overridden = new HashSet<>();
+
+        for (Class<?> c = s.getClass(); c != State.class; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                final OnMessage annotation = m.getAnnotation(OnMessage.class);
+                if (annotation == null || !overridden.add(m.getName())) {
+                    // Not annotated, or overridden by a subclass method.
+                    continue;
+                }
+
+                final MethodHandle h = handleFor(m);
+                for (int what : annotation.what()) {
+                    if (handles.put(what, h) != null) {
+                        throw new IllegalStateException("message " + what + " handled twice in " + c.getName());
+                    }
+                }
+            }
+        }
+
+        return handles;
+    }
+
+    private static MethodHandle handleFor(Method m) {
+        if (Modifier.isStatic(m.getModifiers())
+                || m.getParameterCount() != 1
+                || m.getParameterTypes()[0] != Message.class
+                || (m.getReturnType() != boolean.class && m.getReturnType() != void.class)) {
+            throw new IllegalStateException("@OnMessage method " + m + " must be boolean or void f(Message)");
+        }
+
+        MethodHandle h;
+        try {
+            m.setAccessible(true);
+            h = MethodHandles.lookup().unreflect(m);
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalStateException("@OnMessage method " + m + " is not accessible", e);
+        }
+
+        if (m.getReturnType() == void.class) {
+            // A void method always handles the message.
+            h = MethodHandles.foldArguments(
+                    MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true),
+                            0, State.class, Message.class),
+                    h.asType(MethodType.methodType(void.class, State.class, Message.class)));
+        }
+        return h.asType(RECEIVER_TYPE);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+/**
+ * A LatencyHistogram counts durations, in nanoseconds, in power of two
+ * buckets: the bucket <i> holds the durations in [2^(i-1), 2^i). Recording
+ * a duration never allocates and histograms can be added together.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 65;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    LatencyHistogram() {}
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+        count++;
+        total += nanos;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the recorded durations, in nanoseconds.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the longest recorded duration, in nanoseconds.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean of the recorded durations, in nanoseconds.
+     */
+    public double getMean() {
+        return count == 0 ? 0.0 : (double) total / count;
+    }
+
+    /**
+     * Estimates a percentile of the recorded durations. The result is the
+     * upper bound of the bucket holding the percentile, so it is at most
+     * twice the exact value.
+     * @param p the percentile, between 0 and 100.
+     * @return the estimated duration, in nanoseconds.
+     */
+    public long getPercentile(double p) {
+        if (p < 0.0 || p > 100.0) {
+            throw new IllegalArgumentException("invalid percentile '" + p + "'");
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1L, (long) Math.ceil(count * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min(max, i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" +
+                "count=" + count +
+                ", mean=" + (long) getMean() +
+                ", p99=" + getPercentile(99.0) +
+                ", max=" + max +
+                '}';
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded ring of the last records of a state machine processing. The
+ * records are allocated once and overwritten, so recording a message does
+ * not allocate.
+ *
+ * Records are only added by the Looper thread, without lock: each one is
+ * published by the volatile count written after it. The ring has a spare
+ * record, the one being written, so that readers copy the kept ones and only
+ * drop those the Looper overwrote while they were copying.
+ */
+class LogRecs {
+
+    /**
+     * The records, the one of number <n> being at index n % (size + 1).
+     */
+    private final StateMachine.LogRec[] recs;
+
+    /**
+     * Number of records kept.
+     */
+    private final int size;
+
+    /**
+     * Index of the next record to overwrite, Looper thread only.
+     */
+    private int next;
+
+    /**
+     * Number of records ever added, including the overwritten ones.
+     */
+    private volatile long total;
+
+    LogRecs(int size) {
+        this.size = size;
+        recs = new StateMachine.LogRec[size + 1];
+        for (int i = 0; i < recs.length; i++) {
+            recs[i] = new StateMachine.LogRec();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(long time, long duration, int what, State state, State orgState, State dstState) {
+        recs[next].update(time, duration, what, state, orgState, dstState);
+        next = next + 1 == recs.length ? 0 : next + 1;
+        total = total + 1;
+    }
+
+    long total() {
+        return total;
+    }
+
+    /**
+     * Provides a copy of the records, from the oldest to the newest.
+     */
+    List<StateMachine.LogRec> copy() {
+        final long end = total;
+        final long start = Math.max(0, end - size);
+        final List<StateMachine.LogRec> copy = new ArrayList<>((int) (end - start));
+        for (long n = start; n < end; n++) {
+            copy.add(recs[(int) (n % recs.length)].copy());
+        }
+
+        // The records up to this one may have been overwritten meanwhile.
+        VarHandle.loadLoadFence();
+        final long overwritten = total - recs.length;
+        if (overwritten >= start) {
+            copy.subList(0, (int) Math.min(copy.size(), overwritten - start + 1)).clear();
+        }
+        return copy;
+    }
+}
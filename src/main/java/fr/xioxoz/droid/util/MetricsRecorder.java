@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the metrics of a running state machine. Recording happens on the
+ * machine thread while snapshots may be taken from any thread.
+ *
+ * The machine thread records without lock, making the version odd during
+ * each update. A snapshot copies the metrics and starts again if the version
+ * was odd or changed meanwhile.
+ */
+class MetricsRecorder {
+
+    private final AtomicInteger version = new AtomicInteger();
+
+    private final String[] names;
+    private final long[] timeInState;
+    private final LatencyHistogram[] process;
+    private final LatencyHistogram[] enter;
+    private final LatencyHistogram[] exit;
+    private final long[] transitions;
+    private final long[] deferred;
+
+    /**
+     * Date at which each state was entered, -1 when not active.
+     */
+    private final long[] enteredAt;
+
+    MetricsRecorder(StateGraph graph) {
+        final int count = graph.size();
+        names = new String[count];
+        timeInState = new long[count];
+        process = new LatencyHistogram[count];
+        enter = new LatencyHistogram[count];
+        exit = new LatencyHistogram[count];
+        transitions = new long[count * count];
+        deferred = new long[count];
+        enteredAt = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = graph.states[i].getName();
+            process[i] = new LatencyHistogram();
+            enter[i] = new LatencyHistogram();
+            exit[i] = new LatencyHistogram();
+            enteredAt[i] = -1L;
+        }
+    }
+
+    private void beginUpdate() {
+        version.setOpaque(version.getPlain() + 1);
+        VarHandle.storeStoreFence();
+    }
+
+    private void endUpdate() {
+        version.setRelease(version.getPlain() + 1);
+    }
+
+    void onProcess(int state, long duration) {
+        beginUpdate();
+        process[state].record(duration);
+        endUpdate();
+    }
+
+    void onEnter(int state, long duration, long now) {
+        beginUpdate();
+        enter[state].record(duration);
+        enteredAt[state] = now;
+        endUpdate();
+    }
+
+    void onExit(int state, long duration, long now) {
+        beginUpdate();
+        exit[state].record(duration);
+        if (enteredAt[state] != -1L) {
+            timeInState[state] += now - duration - enteredAt[state];
+            enteredAt[state] = -1L;
+        }
+        endUpdate();
+    }
+
+    void onTransition(int from, int to) {
+        beginUpdate();
+        transitions[from * names.length + to]++;
+        endUpdate();
+    }
+
+    void onDeferred(int state) {
+        beginUpdate();
+        deferred[state]++;
+        endUpdate();
+    }
+
+    /**
+     * Provides a snapshot of the metrics. The time spent in the active
+     * states is counted up to <now>.
+     */
+    StateMachineMetrics snapshot(long now) {
+        for (;;) {
+            final int v = version.getAcquire();
+            if ((v & 1) == 0) {
+                final StateMachineMetrics metrics = copy(now);
+                VarHandle.loadLoadFence();
+                if (version.getOpaque() == v) {
+                    return metrics;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private StateMachineMetrics copy(long now) {
+        final int count = names.length;
+        final long[] time = timeInState.clone();
+        final LatencyHistogram[] process = new LatencyHistogram[count];
+        final LatencyHistogram[] enter = new LatencyHistogram[count];
+        final LatencyHistogram[] exit = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            if (enteredAt[i] != -1L) {
+                time[i] += now - enteredAt[i];
+            }
+            process[i] = this.process[i].copy();
+            enter[i] = this.enter[i].copy();
+            exit[i] = this.exit[i].copy();
+        }
+        return new StateMachineMetrics(names, time, process, enter, exit,
+                transitions.clone(), deferred.clone(), 1);
+    }
+}
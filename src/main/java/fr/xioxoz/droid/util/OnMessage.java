@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Marks a method of a {@link State} as the handler of the messages with the
+ * given <code>what</code> codes, instead of <code>processMessage</code>.</p>
+ *
+ * <p>The method takes the {@link fr.xioxoz.droid.os.Message} as only
+ * parameter and returns either a boolean, with the same meaning as the
+ * <code>processMessage</code> result, or nothing when the message is always
+ * handled. The annotated methods are resolved when the machine is started.</p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OnMessage {
+    /**
+     * The message codes handled by the method.
+     */
+    int[] what();
+}
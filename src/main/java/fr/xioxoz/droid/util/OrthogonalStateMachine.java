@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Handler;
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+import fr.xioxoz.droid.os.MessageToken;
+import fr.xioxoz.droid.os.Messenger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An OrthogonalStateMachine is made of several {@link StateMachine}s, its
+ * regions, active at the same time. Each message sent to it is broadcast to
+ * the current state of every region. The regions may run on the Looper of the
+ * OrthogonalStateMachine or on other Loopers, in which case they process the
+ * message in parallel.</p>
+ *
+ * <p>Regions join twice per message: once all of them have processed it,
+ * they perform the transitions their states asked for, then process the
+ * deferred and held messages this released, and the next message is only
+ * broadcast once all of them have done so. A state can thus check the other
+ * regions with <code>isActive</code> while processing a message and see them
+ * as they were when the message arrived. The timers of a region and the
+ * messages it sends to itself are processed by the region alone; when the
+ * regions have their own Loopers, they may run during the next broadcast,
+ * whose <code>isActive</code> calls then see the region as it is.</p>
+ *
+ * <p>A region throwing while processing or committing a broadcast stops its
+ * Looper: it is left out of the broadcasts, and the others go on.</p>
+ */
+public class OrthogonalStateMachine implements Messenger {
+
+    // Ask a region to process the broadcast message.
+    private static final int CMD_PROCESS = 0;
+
+    // Ask a region to perform its transitions.
+    private static final int CMD_COMMIT = 1;
+
+    // Tell the machine the broadcast is over.
+    private static final int CMD_BROADCAST_DONE = -1;
+
+    /**
+     * A region and the Handler used to reach it on its own Looper.
+     */
+    private static final class Region {
+        private final StateMachine region;
+        private final StateMachineHandler machine;
+        private Handler handler;
+
+        // Run once the region processed the messages released by its commit.
+        private Runnable drained;
+
+        // True once the region threw, stopping its Looper.
+        private volatile boolean failed;
+
+        private Region(StateMachine region) {
+            this.region = region;
+            this.machine = region.getHandler();
+        }
+    }
+
+    private final Handler handler;
+
+    private final List<Region> regions = new ArrayList<>();
+
+    // Regions still processing or committing the current broadcast.
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    // Messages received during a broadcast, oldest first.
+    private final Queue<Message> waiting = new ArrayDeque<>();
+
+    // The message being broadcast, null if none.
+    private Message broadcasting;
+
+    private boolean started;
+
+    /**
+     * Creates a machine receiving its messages on the provided Looper.
+     * @param looper the thread to use.
+     */
+    public OrthogonalStateMachine(Looper looper) {
+        handler = new Handler(looper, m -> {
+            handleMessage(m);
+            return true;
+        });
+    }
+
+    /**
+     * Adds a region. The region must not be started, it is started with this
+     * machine. The messages for all the regions are sent to this machine. The
+     * states of a region can't be entered asynchronously.
+     * @param region the region.
+     */
+    public final void addRegion(StateMachine region) {
+        if (region == null) {
+            throw new NullPointerException("region cannot be null");
+        }
+        if (started) {
+            throw new IllegalStateException("state machine already started");
+        }
+        if (region.getHandler().entersAsynchronously()) {
+            throw new IllegalStateException("asynchronous enter not supported by regions");
+        }
+        for (Region r : regions) {
+            if (r.region == region) {
+                throw new IllegalStateException("region already added");
+            }
+        }
+        regions.add(new Region(region));
+    }
+
+    /**
+     * Starts all the regions.
+     */
+    public void start() {
+        if (started) {
+            throw new IllegalStateException("state machine already started");
+        }
+        if (regions.isEmpty()) {
+            throw new IllegalStateException("no region");
+        }
+        for (Region r : regions) {
+            // States may have been added to the region since.
+            if (r.machine.entersAsynchronously()) {
+                throw new IllegalStateException("asynchronous enter not supported by regions");
+            }
+        }
+        started = true;
+
+        for (Region r : regions) {
+            r.handler = new Handler(r.machine.getLooper(), m -> {
+                processInRegion(r, m);
+                return true;
+            });
+            r.drained = () -> {
+                if (remaining.decrementAndGet() == 0) {
+                    handler.sendMessageAtFrontOfQueue(handler.obtainMessage(CMD_BROADCAST_DONE));
+                }
+            };
+            r.region.start();
+        }
+    }
+
+    /**
+     * Tells if a state of one of the regions is active. Meant to be called by
+     * the states while processing a broadcast message.
+     * @param state the state.
+     * @return true if the state is part of the active branch of its region.
+     */
+    public final boolean isActive(State state) {
+        if (state == null) {
+            throw new NullPointerException("state cannot be null");
+        }
+        for (Region r : regions) {
+            final Boolean active = r.machine.isActive(state);
+            if (active != null) {
+                return active;
+            }
+        }
+        throw new IllegalStateException("state not added");
+    }
+
+    private void handleMessage(Message m) {
+        if (m.what == CMD_BROADCAST_DONE) {
+            broadcasting.releasePayload();
+            broadcasting = null;
+            if (!waiting.isEmpty()) {
+                broadcast(waiting.poll());
+            }
+        } else if (broadcasting != null) {
+            // Wait for the regions to join.
+            waiting.add(m.retainPayload());
+        } else {
+            broadcast(m.retainPayload());
+        }
+    }
+
+    /**
+     * Sends <m> to the regions, its payload is retained until they are done
+     * with it.
+     */
+    private void broadcast(Message m) {
+        broadcasting = m;
+        if (!join()) {
+            // No region left.
+            handler.sendMessageAtFrontOfQueue(handler.obtainMessage(CMD_BROADCAST_DONE));
+            return;
+        }
+        for (Region r : regions) {
+            if (!r.failed) {
+                r.handler.sendMessage(r.handler.obtainMessage(CMD_PROCESS).withPayload(m));
+            }
+        }
+    }
+
+    /**
+     * Sets the number of regions to wait for, the failed ones being left
+     * out.
+     * @return false if there is no region left.
+     */
+    private boolean join() {
+        int count = 0;
+        for (Region r : regions) {
+            if (!r.failed) {
+                count++;
+            }
+        }
+        remaining.set(count);
+        return count > 0;
+    }
+
+    /**
+     * Runs on the Looper of a region. A region throwing is left out of the
+     * broadcasts, so that the others go on without it.
+     */
+    private void processInRegion(Region r, Message m) {
+        if (m.what == CMD_PROCESS) {
+            try {
+                r.machine.processInRegion((Message) m.payload);
+            } catch (RuntimeException | Error e) {
+                r.failed = true;
+                throw e;
+            } finally {
+                if (remaining.decrementAndGet() == 0) {
+                    commit();
+                }
+            }
+        } else {
+            // The released messages are queued at the front, the region is
+            // done once it processed them.
+            try {
+                r.machine.commitRegion();
+            } catch (RuntimeException | Error e) {
+                r.failed = true;
+                r.drained.run();
+                throw e;
+            }
+            r.machine.runAfterPending(r.drained);
+        }
+    }
+
+    /**
+     * Asks the regions to perform their transitions, once all of them
+     * processed the broadcast message.
+     */
+    private void commit() {
+        if (!join()) {
+            handler.sendMessageAtFrontOfQueue(handler.obtainMessage(CMD_BROADCAST_DONE));
+            return;
+        }
+        for (Region region : regions) {
+            if (region.failed) {
+                continue;
+            }
+            // Sent at the front of the queue.
+            if (region.handler.sendMessageAtTimeWithToken(region.handler.obtainMessage(CMD_COMMIT), 0L)
+                    == MessageToken.NONE) {
+                // The Looper of the region is quitting, it stays holding.
+                region.machine.abandonSnapshots();
+            }
+        }
+    }
+
+    @Override
+    public final Message obtainMessage() {
+        return handler.obtainMessage();
+    }
+
+    @Override
+    public final Message obtainMessage(int what) {
+        return handler.obtainMessage(what);
+    }
+
+    @Override
+    public final void sendMessage(Message m) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        handler.sendMessage(m);
+    }
+
+    @Override
+    public void sendMessageDelayed(Message m, long delay) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        if (delay < 0l) {
+            throw new IllegalArgumentException("cannot send message in the past");
+        }
+        handler.sendMessageDelayed(m, delay);
+    }
+
+    @Override
+    public void sendMessageAtFrontOfQueue(Message m) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        handler.sendMessageAtFrontOfQueue(m);
+    }
+
+    @Override
+    public void sendMessageAtTime(Message m, long time) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        if (time < 0l) {
+            throw new IllegalArgumentException("invalid time '" + time + "'");
+        }
+        handler.sendMessageAtTime(m, time);
+    }
+
+    @Override
+    public final MessageToken sendMessageWithToken(Message m) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        return handler.sendMessageWithToken(m);
+    }
+
+    @Override
+    public MessageToken sendMessageDelayedWithToken(Message m, long delay) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        if (delay < 0l) {
+            throw new IllegalArgumentException("cannot send message in the past");
+        }
+        return handler.sendMessageDelayedWithToken(m, delay);
+    }
+
+    @Override
+    public MessageToken sendMessageAtTimeWithToken(Message m, long time) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        if (time < 0l) {
+            throw new IllegalArgumentException("invalid time '" + time + "'");
+        }
+        return handler.sendMessageAtTimeWithToken(m, time);
+    }
+
+    /**
+     * Cancels a message not broadcast yet.
+     */
+    @Override
+    public final boolean cancel(MessageToken token) {
+        return handler.cancel(token);
+    }
+
+    public final void sendMessage(int what) {
+        handler.sendMessage(handler.obtainMessage(what));
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A PayloadCodec writes and reads the payloads of Messages, so that the
+ * messages of a state machine can be saved in a binary form.
+ */
+public interface PayloadCodec {
+    /**
+     * Writes a message payload.
+     * @param payload the payload, never null.
+     * @param out the output to write to.
+     * @throws IOException if the payload can't be written.
+     */
+    void encode(Object payload, DataOutput out) throws IOException;
+
+    /**
+     * Reads a message payload written by <code>encode</code>.
+     * @param in the input to read from.
+     * @return the payload.
+     * @throws IOException if the payload can't be read.
+     */
+    Object decode(DataInput in) throws IOException;
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Handler;
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A SharedStateMachine runs many lightweight instances of the same
+ * hierarchical state machine on one Looper. The hierarchy and the
+ * <code>State</code> objects are defined once, like for a
+ * {@link StateMachine}, and each instance only holds the index of its current
+ * state, its deferred messages and a user context.</p>
+ *
+ * <p>Instances are the Handlers their messages are sent to. When an instance
+ * processes a message or performs a transition, the shared states can get it
+ * with <code>getInstance</code>, and <code>transitionTo</code> and
+ * <code>deferMessage</code> apply to it.</p>
+ *
+ * <p>The hierarchy is frozen when the first instance is created.</p>
+ *
+ * @param <T> the type of the instances context.
+ */
+public class SharedStateMachine<T> {
+
+    // Ask an instance to enter its initial state.
+    private static final int CMD_INIT_INSTANCE = -1;
+
+    /**
+     * An instance of the machine.
+     */
+    public static final class Instance<T> extends Handler {
+
+        private final SharedStateMachine<T> machine;
+
+        private final T context;
+
+        // Index of the current state, -1 before initialization.
+        private int current = -1;
+
+        // Index of the state to transition to, -1 when none.
+        private int next = -1;
+
+        // Messages to replay after the next transition, oldest first,
+        // allocated on first use.
+        private List<Message> deferred;
+
+        private Instance(SharedStateMachine<T> machine, T context) {
+            super(machine.looper);
+            this.machine = machine;
+            this.context = context;
+        }
+
+        /**
+         * @return the context given when creating the instance.
+         */
+        public T getContext() {
+            return context;
+        }
+
+        /**
+         * @return the current state of the instance, null if not yet started.
+         */
+        public State getCurrentState() {
+            final int state = current;
+            return state == -1 ? null : machine.graph.states[state];
+        }
+
+        @Override
+        protected void handleMessage(Message m) {
+            machine.process(this, m);
+        }
+    }
+
+    private final Looper looper;
+
+    // The index of each state, in order of addition.
+    private final Map<State, Integer> indexes = new HashMap<>();
+    private final List<State> states = new ArrayList<>();
+    private final List<Integer> parents = new ArrayList<>();
+
+    private int initial = -1;
+
+    // The frozen hierarchy and dispatch table, null before the first instance.
+    private StateGraph graph;
+    private DispatchTable dispatch;
+
+    // The instance being processed on the Looper thread.
+    private Instance<T> instance;
+
+    /**
+     * Creates a new shared state machine running its instances on the
+     * provided Looper.
+     * @param looper the thread to use.
+     */
+    public SharedStateMachine(Looper looper) {
+        if (looper == null) {
+            throw new NullPointerException("looper cannot be null");
+        }
+        this.looper = looper;
+    }
+
+    /**
+     * Adds a state to the hierarchy as a root.
+     * @param state the state to add.
+     */
+    public final void addState(State state) {
+        if (state == null) {
+            throw new NullPointerException("cannot add null state");
+        }
+        addStateInternal(state, -1);
+    }
+
+    /**
+     * Adds a state to the hierarchy as a child of the given parent.
+     * @param state the state to add.
+     * @param parent the parent state, already added.
+     */
+    public final void addState(State state, State parent) {
+        if (state == null || parent == null) {
+            throw new NullPointerException("cannot add null state");
+        }
+        final Integer p = indexes.get(parent);
+        if (p == null) {
+            throw new IllegalStateException("parent state not added");
+        }
+        addStateInternal(state, p);
+    }
+
+    private synchronized void addStateInternal(State state, int parent) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        if (indexes.containsKey(state)) {
+            throw new IllegalStateException("state already added");
+        }
+        if (State.entersAsynchronously(state)) {
+            throw new IllegalStateException("asynchronous enter not supported by shared states");
+        }
+        indexes.put(state, states.size());
+        states.add(state);
+        parents.add(parent);
+    }
+
+    /**
+     * Defines the initial state of the instances.
+     * @param state the initial state, already added.
+     */
+    public final synchronized void setInitialState(State state) {
+        if (state == null) {
+            throw new NullPointerException("initial state cannot be null");
+        }
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        final Integer index = indexes.get(state);
+        if (index == null) {
+            throw new IllegalStateException("state not added");
+        }
+        initial = index;
+    }
+
+    /**
+     * Creates and starts a new instance. Its initial states are entered on
+     * the Looper thread, before it processes any message.
+     * @param context the instance context.
+     * @return the new instance.
+     */
+    public final Instance<T> newInstance(T context) {
+        freeze();
+        final Instance<T> i = new Instance<>(this, context);
+        i.sendMessage(i.obtainMessage(CMD_INIT_INSTANCE));
+        return i;
+    }
+
+    private synchronized void freeze() {
+        if (graph != null) {
+            return;
+        }
+        if (initial == -1) {
+            throw new IllegalStateException("initial state not set");
+        }
+
+        final int[] p = new int[parents.size()];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = parents.get(i);
+        }
+        graph = new StateGraph(states.toArray(new State[0]), p);
+        dispatch = new DispatchTable(graph, null, null);
+    }
+
+    /**
+     * Provides the instance being processed. Must be called by the states.
+     * @return the instance.
+     */
+    protected final Instance<T> getInstance() {
+        checkProcessing("getInstance");
+        return instance;
+    }
+
+    /**
+     * Tells the instance being processed the state to reach before handling
+     * any new message. Must be called by the states.
+     * @param state the state to transition to.
+     */
+    protected final void transitionTo(State state) {
+        if (state == null) {
+            throw new NullPointerException("cannot transition to null state");
+        }
+        checkProcessing("transitionTo");
+        final Integer index = indexes.get(state);
+        if (index == null) {
+            throw new IllegalStateException("state not added");
+        }
+        instance.next = index;
+    }
+
+    /**
+     * Defers a Message of the instance being processed until its next
+     * transition. Must be called by the states.
+     * @param m the Message to defer.
+     */
+    protected final void deferMessage(Message m) {
+        if (m == null) {
+            throw new NullPointerException("cannot defer null message");
+        }
+        checkProcessing("deferMessage");
+        if (instance.deferred == null) {
+            instance.deferred = new ArrayList<>();
+        }
+        instance.deferred.add(m.retainPayload());
+    }
+
+    private void checkProcessing(String method) {
+        if (!looper.isCurrentThread() || instance == null) {
+            throw new IllegalStateException(method + " called outside of an instance processing");
+        }
+    }
+
+    private void process(Instance<T> i, Message m) {
+        instance = i;
+        try {
+            if (m.what == CMD_INIT_INSTANCE) {
+                enterStates(i, graph.path(-1, initial));
+            } else if (i.current != -1) {
+                dispatchToStates(i, m);
+            }
+            performTransitions(i);
+        } finally {
+            instance = null;
+        }
+    }
+
+    private void dispatchToStates(Instance<T> i, Message m) {
+        final DispatchTable.Receiver[] receivers = dispatch.receivers(i.current, dispatch.column(m.what));
+        for (int r = 0; r < receivers.length; r++) {
+            if (receivers[r].process(m)) {
+                break;
+            }
+        }
+    }
+
+    private void performTransitions(Instance<T> i) {
+        if (i.next == -1) {
+            return;
+        }
+
+        while (i.current != i.next) {
+            final StateGraph.Path path = graph.path(i.current, i.next);
+            for (int e = 0; e < path.exits; e++) {
+                graph.states[i.current].exit();
+                i.current = graph.parents[i.current];
+            }
+            enterStates(i, path);
+        }
+        i.next = -1;
+
+        // Put deferred messages at the front of queue to ensure they will be replayed before the others.
+        if (i.deferred != null && !i.deferred.isEmpty()) {
+            i.sendMessagesAtFrontOfQueue(i.deferred);
+            i.deferred.clear();
+        }
+    }
+
+    private void enterStates(Instance<T> i, StateGraph.Path path) {
+        for (int e = 0; e < path.enters.length; e++) {
+            i.current = path.enters[e];
+            graph.states[i.current].enter();
+        }
+    }
+}
@@ -6,6 +6,8 @@ package fr.xioxoz.droid.util;
 
 import fr.xioxoz.droid.os.Message;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * State is the skeleton class for the StateMachine states implementation.
  */
@@ -15,6 +17,21 @@ public class State {
      */
     public void enter() {}
 
+    /**
+     * Called instead of <code>enter</code> by a {@link StateMachine}, for
+     * the states doing slow work when entered. Until the returned stage
+     * completes, on any thread, the machine holds its messages and doesn't
+     * enter the children of the state; it then resumes on its Looper. A stage
+     * completing exceptionally is reported to
+     * {@link StateMachine#onEnterFailed}. Defaults to calling
+     * <code>enter</code> and returning null: the state is entered at once.
+     * @return the stage completing once the state is entered, or null.
+     */
+    public CompletionStage<?> enterAsync() {
+        enter();
+        return null;
+    }
+
     /**
      * Called when the state is exiting this state.
      */
@@ -31,4 +48,25 @@ public class State {
         // nobody) process it.
         return false;
     }
+
+    /**
+     * Tells if <state> overrides <code>enterAsync</code>, and may thus be
+     * entered asynchronously.
+     */
+    static boolean entersAsynchronously(State state) {
+        try {
+            return state.getClass().getMethod("enterAsync").getDeclaringClass() != State.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Provides the name of the state, used in logs and dumps. Defaults to the
+     * simple name of the state class.
+     */
+    public String getName() {
+        final String name = getClass().getName();
+        return name.substring(Math.max(name.lastIndexOf('$'), name.lastIndexOf('.')) + 1);
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+/**
+ * A StateGraph is the frozen hierarchy of a state machine. States are
+ * identified by their index and the exit/enter sequences between two states
+ * are computed once, so that performing a transition is an allocation free
+ * walk over arrays.
+ */
+class StateGraph {
+
+    // Up to this number of states, all the paths are computed when freezing
+    // the graph. Above, they are computed on first use.
+    private static final int PRECOMPUTE_LIMIT = 16;
+
+    /**
+     * The sequence of states to exit and enter to go from a state to another.
+     */
+    static final class Path {
+        /**
+         * Number of states to exit, starting from the current state and
+         * walking up its parents.
+         */
+        final int exits;
+
+        /**
+         * Indexes of the states to enter, in order.
+         */
+        final int[] enters;
+
+        private Path(int exits, int[] enters) {
+            this.exits = exits;
+            this.enters = enters;
+        }
+    }
+
+    /**
+     * The states of the machine, by index.
+     */
+    final State[] states;
+
+    /**
+     * Index of the parent of each state, -1 for the hierarchy roots.
+     */
+    final int[] parents;
+
+    /**
+     * Paths by origin and destination. The first row holds the paths from
+     * no state, used to start the machine. Rows are allocated on first use.
+     */
+    private final Path[][] paths;
+
+    StateGraph(State[] states, int[] parents) {
+        this.states = states;
+        this.parents = parents;
+        this.paths = new Path[states.length + 1][];
+
+        if (states.length <= PRECOMPUTE_LIMIT) {
+            for (int from = -1; from < states.length; from++) {
+                for (int to = 0; to < states.length; to++) {
+                    path(from, to);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return states.length;
+    }
+
+    /**
+     * Provides the path to go from the state <from> to the state <to>. A
+     * <from> index of -1 means the machine is not in any state yet.
+     */
+    Path path(int from, int to) {
+        Path[] row = paths[from + 1];
+        if (row == null) {
+            row = new Path[states.length];
+            paths[from + 1] = row;
+        }
+
+        Path p = row[to];
+        if (p == null) {
+            p = computePath(from, to);
+            row[to] = p;
+        }
+        return p;
+    }
+
+    private Path computePath(int from, int to) {
+        // The states active when in <from>, i.e. <from> and its ancestors.
+        final boolean[] active = new boolean[states.length];
+        for (int s = from; s != -1; s = parents[s]) {
+            active[s] = true;
+        }
+
+        // Going to <from> or one of its ancestors leaves the whole branch and
+        // enters it again from its root.
+        int common = -1;
+        if (!active[to]) {
+            common = parents[to];
+            while (common != -1 && !active[common]) {
+                common = parents[common];
+            }
+        }
+
+        int exits = 0;
+        for (int s = from; s != common; s = parents[s]) {
+            exits++;
+        }
+
+        int depth = 0;
+        for (int s = to; s != common; s = parents[s]) {
+            depth++;
+        }
+        final int[] enters = new int[depth];
+        for (int s = to; s != common; s = parents[s]) {
+            enters[--depth] = s;
+        }
+
+        return new Path(exits, enters);
+    }
+}
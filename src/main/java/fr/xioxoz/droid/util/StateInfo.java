@@ -4,6 +4,9 @@
 
 package fr.xioxoz.droid.util;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A StateInfo describes a State in the state machine hierarchy.
  */
@@ -14,15 +17,33 @@ class StateInfo {
      */
     final State state;
 
+    /**
+     * Index of the state in the machine hierarchy, in order of addition.
+     */
+    int index;
+
     /**
      * The parent of the state in the state machine hierarchy.
      */
     StateInfo parent;
 
     /**
-     * Tells if the state is under execution now.
+     * Tells if the state is under execution now. Volatile for the regions of
+     * an OrthogonalStateMachine, checking each other from their Loopers.
+     */
+    volatile boolean active;
+
+    /**
+     * Incremented each time the state is exited, so that the timers armed
+     * while it was active can be told stale.
      */
-    boolean active;
+    int generation;
+
+    /**
+     * The tokens of the timers armed while the state is active and not
+     * fired yet, cancelled when it is exited.
+     */
+    final List<StateMachineHandler.StateTimer> timers = new ArrayList<>();
 
     State getState() {
         return state;
@@ -36,6 +57,11 @@ class StateInfo {
         return active;
     }
 
+    StateInfo withIndex(int index) {
+        this.index = index;
+        return this;
+    }
+
     StateInfo withParent(StateInfo parent) {
         this.parent = parent;
         return this;
@@ -6,8 +6,13 @@ package fr.xioxoz.droid.util;
 
 import fr.xioxoz.droid.os.Looper;
 import fr.xioxoz.droid.os.Message;
+import fr.xioxoz.droid.os.MessageToken;
 import fr.xioxoz.droid.os.Messenger;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
 /**
  * <p>StateMachine is a hierarchical state machine which processes messages
  * and can have states arranged hierarchically.</p>
@@ -27,6 +32,11 @@ import fr.xioxoz.droid.os.Messenger;
  * of the StateMachine's Handler, not in the context of the call to start, and they
  * will be invoked before any messages are processed.</p>
  *
+ * <p>Once started, the hierarchy can't be changed anymore and the machine only
+ * runs on the thread of its Looper: states are entered, exited and given
+ * messages on that thread without any locking, and <code>transitionTo</code>
+ * or <code>deferMessage</code> calls from another thread are rejected.</p>
+ *
  * <p>After the state machine is created and started, messages are sent to a state
  * machine using <code>sendMessage</code> and the messages are created using
  * <code>obtainMessage</code>. When the state machine receives a message the
@@ -36,12 +46,20 @@ import fr.xioxoz.droid.os.Messenger;
  * a child state is unable to handle a message it may have the message processed
  * by its parent by returning false.</p>
  *
+ * <p>Instead of switching on the message code in <code>processMessage</code>,
+ * a state may annotate methods with {@link OnMessage}. The annotated methods
+ * are resolved when the machine is started, so that finding the methods
+ * processing a message, in the current state and its parents, is a single
+ * table lookup.</p>
+ *
  * <p>If it is desirable to completely stop the state machine call <code>quit</code> or
  * <code>quitNow</code>. These will call <code>exit</code> of the current state and its parents
  * and then exit Thread/Loopers.</p>
  *
  * <p>In addition to <code>processMessage</code> each <code>State</code> has
- * an <code>enter</code> method and <code>exit</code> method which may be overridden.</p>
+ * an <code>enter</code> method and <code>exit</code> method which may be overridden.
+ * A state doing slow work when entered overrides <code>enterAsync</code>
+ * instead, so that the Looper is not blocked while the work completes.</p>
  *
  * <p>Since the states are arranged in a hierarchy transitioning to a new state
  * causes current states to be exited and new states to be entered. To determine
@@ -59,10 +77,123 @@ import fr.xioxoz.droid.os.Messenger;
  * transition is made to a new state. At which time all of the deferred messages
  * will be put on the front of the state machine queue with the oldest message
  * at the front. These will then be processed by the new current state before
- * any other messages that are on the queue or might be added later.</p>
+ * any other messages that are on the queue or might be added later. The
+ * number of deferred messages can be bounded, and <code>addDeferral</code>
+ * makes a state defer some messages without having to process them.</p>
+ *
+ * <p>Transitions can also be declared with <code>addTransition</code>
+ * instead of calling <code>transitionTo</code> from a state. The
+ * {@link fr.xioxoz.droid.util.spec.StateMachineSpec} annotation lets the
+ * hierarchy and these transitions be declared and checked at compile
+ * time.</p>
+ *
+ * <p>For debugging purposes, the machine can keep a bounded log of the last
+ * processed messages and of the states involved, see <code>setLogRecSize</code>,
+ * <code>getLogRecs</code> and <code>dump</code>. It can also collect timing
+ * metrics about its states and transitions, see <code>setMetricsEnabled</code>
+ * and <code>getMetrics</code>. The messages it receives can be recorded with
+ * <code>setRecorder</code> and replayed by a {@link StateMachineReplayer}.</p>
+ *
+ * <p>Several machines can run as the orthogonal regions of an
+ * {@link OrthogonalStateMachine}, which broadcasts its messages to all of
+ * them.</p>
+ *
+ * <p>A running machine can be saved with <code>snapshot</code>, and a new
+ * machine of the same class can be started from the snapshot with
+ * <code>restore</code> instead of <code>start</code>.</p>
  */
 public class StateMachine implements Messenger {
 
+    /**
+     * A record of the processing of a message by the state machine.
+     */
+    public static class LogRec {
+        private long time;
+        private long duration;
+        private int what;
+        private State state;
+        private State orgState;
+        private State dstState;
+
+        LogRec() {}
+
+        void update(long time, long duration, int what, State state, State orgState, State dstState) {
+            this.time = time;
+            this.duration = duration;
+            this.what = what;
+            this.state = state;
+            this.orgState = orgState;
+            this.dstState = dstState;
+        }
+
+        LogRec copy() {
+            LogRec rec = new LogRec();
+            rec.update(time, duration, what, state, orgState, dstState);
+            return rec;
+        }
+
+        /**
+         * @return the time at which the message processing started, in
+         *         milliseconds of the Looper clock.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the duration of the processing, transitions included, in
+         *         nanoseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the code of the processed message.
+         */
+        public int getWhat() {
+            return what;
+        }
+
+        /**
+         * @return the state that handled the message, or null if no state did.
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return the state the machine was in when the message arrived.
+         */
+        public State getOriginalState() {
+            return orgState;
+        }
+
+        /**
+         * @return the state the machine transitioned to, or null if there was
+         *         no transition.
+         */
+        public State getDestState() {
+            return dstState;
+        }
+
+        @Override
+        public String toString() {
+            return "LogRec{" +
+                    "time=" + time +
+                    ", duration=" + duration +
+                    ", what=" + what +
+                    ", state=" + nameOf(state) +
+                    ", orgState=" + nameOf(orgState) +
+                    ", dstState=" + nameOf(dstState) +
+                    '}';
+        }
+
+        private static String nameOf(State s) {
+            return s == null ? null : s.getName();
+        }
+    }
+
     // Internal State Machine handler that will receive and process the messages.
     private final StateMachineHandler handler;
 
@@ -71,7 +202,11 @@ public class StateMachine implements Messenger {
      * @param looper the thread to use.
      */
     public StateMachine(Looper looper) {
-        handler = new StateMachineHandler(looper);
+        handler = new StateMachineHandler(looper, this);
+    }
+
+    StateMachineHandler getHandler() {
+        return handler;
     }
 
     /**
@@ -113,14 +248,52 @@ public class StateMachine implements Messenger {
     }
 
     /**
-     * Starts (initialize) the state machine.
+     * Starts (initialize) the state machine. The hierarchy is frozen: states
+     * can't be added nor the initial state changed after this call.
      */
     public void start() {
-        handler.sendMessage(handler.obtainMessage(StateMachineHandler.CMD_INIT_STATE_MACHINE));
+        handler.start();
+    }
+
+    /**
+     * Takes a binary snapshot of the running machine: its current state, its
+     * deferred messages and the messages pending in its queue. The machine
+     * keeps running. When called from a foreign thread, the caller waits for
+     * the snapshot to be taken on the machine thread, after the asynchronous
+     * enter of a state if any; it can't be taken by the machine thread while
+     * the machine holds its messages.
+     * @param codec the codec for the message payloads, may be null if all
+     *              the payloads are null.
+     * @return the snapshot.
+     * @throws IOException if a payload can't be written.
+     * @throws IllegalStateException if the machine holds its messages, or if
+     *         its Looper quits before the snapshot is taken.
+     */
+    public final byte[] snapshot(PayloadCodec codec) throws IOException {
+        return handler.snapshot(codec);
+    }
+
+    /**
+     * Starts the state machine from a snapshot taken from a machine of the
+     * same class, instead of its initial state. The saved states are made
+     * active, their enter methods being called only if requested, then the
+     * deferred and pending messages are restored.
+     * @param snapshot the snapshot.
+     * @param codec the codec for the message payloads, may be null if all
+     *              the payloads are null.
+     * @param enter true to call the enter methods of the restored states.
+     * @throws IOException if the snapshot can't be read.
+     */
+    public void restore(byte[] snapshot, PayloadCodec codec, boolean enter) throws IOException {
+        if (snapshot == null) {
+            throw new NullPointerException("snapshot cannot be null");
+        }
+        handler.restore(snapshot, codec, enter);
     }
 
     /**
      * Tells the machine the state to reach before handling any new message.
+     * Must be called from the state machine thread, i.e. by its states.
      * @param state the state to transition to.
      */
     protected final void transitionTo(State state) {
@@ -132,13 +305,175 @@ public class StateMachine implements Messenger {
 
     /**
      * Defers a Message to be handled after the next transition.
+     * Must be called from the state machine thread, i.e. by its states.
      * @param m the Message to defer.
+     * @return false if the message was dropped because the maximum number of
+     *         deferred messages is reached.
      */
-    protected final void deferMessage(Message m) {
+    protected final boolean deferMessage(Message m) {
         if (m == null) {
             throw new NullPointerException("cannot defer null message");
         }
-        handler.deferMessage(m);
+        return handler.deferMessage(m);
+    }
+
+    /**
+     * Arms a timer owned by a state: the message is sent in <code>delay</code>
+     * milliseconds, unless the state is exited before. Exiting the state
+     * removes all its timers from the queue, without looking for them.
+     * Must be called from the state machine thread, while the state is active.
+     * Pending timers are not part of snapshots.
+     * @param state the state owning the timer.
+     * @param m the Message to send.
+     * @param delay the delay, in milliseconds.
+     */
+    protected final void armStateTimer(State state, Message m, long delay) {
+        if (state == null || m == null) {
+            throw new NullPointerException("state and message cannot be null");
+        }
+        if (delay < 0l) {
+            throw new IllegalArgumentException("cannot send message in the past");
+        }
+        handler.armStateTimer(state, m, delay);
+    }
+
+    /**
+     * Called on the state machine thread when the stage returned by the
+     * <code>enterAsync</code> method of a state completed exceptionally. The
+     * machine then goes on entering the branch, unless a transition is asked
+     * here, e.g. to an error state. Logs the failure by default.
+     * @param state the state whose enter failed.
+     * @param error the failure.
+     */
+    protected void onEnterFailed(State state, Throwable error) {
+        System.getLogger(StateMachine.class.getName()).log(System.Logger.Level.WARNING,
+                "asynchronous enter of " + state.getName() + " failed", error);
+    }
+
+    /**
+     * Bounds the number of deferred messages. Once reached, deferring
+     * another message drops it. Must be called before the machine is started.
+     * @param max the maximum number of deferred messages.
+     */
+    public final void setMaxDeferredMessages(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("invalid maximum '" + max + "'");
+        }
+        handler.setMaxDeferredMessages(max);
+    }
+
+    /**
+     * Makes the messages with the code <code>what</code> deferred, without
+     * being given to any state, while the machine is in <code>state</code> or
+     * one of its children. Must be called before the machine is started.
+     * @param state the state, already added.
+     * @param what the code of the messages to defer.
+     */
+    public final void addDeferral(State state, int what) {
+        if (state == null) {
+            throw new NullPointerException("state cannot be null");
+        }
+        handler.addDeferral(state, what);
+    }
+
+    /**
+     * Declares a transition: while the machine is in <code>from</code> or one
+     * of its children, the messages with the code <code>what</code> make it
+     * transition to <code>to</code>. The declared transition takes precedence
+     * over the methods of <code>from</code> and its ancestors, but the
+     * children of <code>from</code> receive the message first. Must be called
+     * before the machine is started.
+     * @param from the state, already added.
+     * @param what the code of the messages.
+     * @param to the destination state, already added.
+     */
+    public final void addTransition(State from, int what, State to) {
+        if (from == null || to == null) {
+            throw new NullPointerException("state cannot be null");
+        }
+        handler.addTransition(from, what, to);
+    }
+
+    /**
+     * Records the messages delivered to the machine from now on, to be
+     * replayed by a {@link StateMachineReplayer}. Must be called before the
+     * machine is started.
+     * @param recorder the recorder, null to stop recording.
+     */
+    public final void setRecorder(StateMachineRecorder recorder) {
+        handler.setRecorder(recorder);
+    }
+
+    /**
+     * Defines the number of records kept about the last processed messages.
+     * Records are preallocated and recycled. The existing records are dropped.
+     * @param size the number of records to keep, 0 to disable recording.
+     */
+    public final void setLogRecSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("invalid log size '" + size + "'");
+        }
+        handler.setLogRecSize(size);
+    }
+
+    /**
+     * @return the number of records kept, 0 when recording is disabled.
+     */
+    public final int getLogRecSize() {
+        final LogRecs recs = handler.getLogRecs();
+        return recs == null ? 0 : recs.size();
+    }
+
+    /**
+     * @return the number of messages recorded since recording was enabled,
+     *         including those whose records were overwritten.
+     */
+    public final long getLogRecCount() {
+        final LogRecs recs = handler.getLogRecs();
+        return recs == null ? 0 : recs.total();
+    }
+
+    /**
+     * Provides a copy of the kept records, from the oldest to the newest.
+     * @return the records, empty when recording is disabled.
+     */
+    public final List<LogRec> getLogRecs() {
+        final LogRecs recs = handler.getLogRecs();
+        return recs == null ? List.of() : recs.copy();
+    }
+
+    /**
+     * Prints the kept records.
+     * @param pw the writer to print to.
+     */
+    public void dump(PrintWriter pw) {
+        final List<LogRec> recs = getLogRecs();
+        pw.println(getClass().getSimpleName() + ":");
+        pw.println(" total records=" + getLogRecCount());
+        for (int i = 0; i < recs.size(); i++) {
+            pw.println(" rec[" + i + "]: " + recs.get(i));
+        }
+        pw.flush();
+    }
+
+    /**
+     * Enables the collection of metrics: time spent in each state, latency of
+     * the state methods, transition and deferred message counts. Must be
+     * called before the machine is started.
+     * @param enabled true to collect metrics.
+     */
+    public final void setMetricsEnabled(boolean enabled) {
+        handler.setMetricsEnabled(enabled);
+    }
+
+    /**
+     * Provides a snapshot of the metrics of the machine. Snapshots of machines
+     * of the same class can be merged.
+     * @return the snapshot, or null if metrics are not collected.
+     */
+    public final StateMachineMetrics getMetrics() {
+        final MetricsRecorder metrics = handler.getMetrics();
+        return metrics == null ? null : metrics.snapshot(System.nanoTime());
     }
 
     @Override
@@ -156,7 +491,10 @@ public class StateMachine implements Messenger {
         if (m == null) {
             throw new NullPointerException("cannot send null message");
         }
-        handler.sendMessage(m);
+        final long time = handler.getLooper().getClock().millis();
+        if (handler.sendUnrecorded(m, time) == null) {
+            handler.sendMessageAtTime(m, time);
+        }
     }
 
     @Override
@@ -167,7 +505,10 @@ public class StateMachine implements Messenger {
         if (delay < 0l) {
             throw new IllegalArgumentException("cannot send message in the past");
         }
-        handler.sendMessageDelayed(m, delay);
+        final long time = handler.getLooper().getClock().millis() + delay;
+        if (handler.sendUnrecorded(m, time) == null) {
+            handler.sendMessageAtTime(m, time);
+        }
     }
 
     @Override
@@ -175,7 +516,9 @@ public class StateMachine implements Messenger {
         if (m == null) {
             throw new NullPointerException("cannot send null message");
         }
-        handler.sendMessageAtFrontOfQueue(m);
+        if (handler.sendUnrecorded(m, 0l) == null) {
+            handler.sendMessageAtFrontOfQueue(m);
+        }
     }
 
     @Override
@@ -186,10 +529,52 @@ public class StateMachine implements Messenger {
         if (time < 0l) {
             throw new IllegalArgumentException("invalid time '" + time + "'");
         }
-        handler.sendMessageAtTime(m, time);
+        if (handler.sendUnrecorded(m, time) == null) {
+            handler.sendMessageAtTime(m, time);
+        }
+    }
+
+    @Override
+    public final MessageToken sendMessageWithToken(Message m) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        final long time = handler.getLooper().getClock().millis();
+        final MessageToken token = handler.sendUnrecorded(m, time);
+        return token != null ? token : handler.sendMessageAtTimeWithToken(m, time);
+    }
+
+    @Override
+    public MessageToken sendMessageDelayedWithToken(Message m, long delay) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        if (delay < 0l) {
+            throw new IllegalArgumentException("cannot send message in the past");
+        }
+        final long time = handler.getLooper().getClock().millis() + delay;
+        final MessageToken token = handler.sendUnrecorded(m, time);
+        return token != null ? token : handler.sendMessageAtTimeWithToken(m, time);
+    }
+
+    @Override
+    public MessageToken sendMessageAtTimeWithToken(Message m, long time) {
+        if (m == null) {
+            throw new NullPointerException("cannot send null message");
+        }
+        if (time < 0l) {
+            throw new IllegalArgumentException("invalid time '" + time + "'");
+        }
+        final MessageToken token = handler.sendUnrecorded(m, time);
+        return token != null ? token : handler.sendMessageAtTimeWithToken(m, time);
+    }
+
+    @Override
+    public final boolean cancel(MessageToken token) {
+        return handler.cancelMessage(token);
     }
 
     public final void sendMessage(int what) {
-        handler.sendMessage(handler.obtainMessage(what));
+        sendMessage(handler.obtainMessage(what));
     }
 }
@@ -7,22 +7,116 @@ package fr.xioxoz.droid.util;
 import fr.xioxoz.droid.os.Handler;
 import fr.xioxoz.droid.os.Looper;
 import fr.xioxoz.droid.os.Message;
+import fr.xioxoz.droid.os.MessageToken;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The Handler running a state machine. The hierarchy is built before the
+ * machine is started, from any thread, then it is frozen and published to
+ * the Looper thread by the start message. Everything else runs on the Looper
+ * thread only, so the processing doesn't need any lock.
+ */
 class StateMachineHandler extends Handler {
 
     // Ask the handler to initialize the state machine.
-    static final int CMD_INIT_STATE_MACHINE = -1;
+    private static final int CMD_INIT_STATE_MACHINE = -1;
+
+    // Ask the handler to restore the state machine from a snapshot.
+    private static final int CMD_RESTORE_STATE_MACHINE = -2;
+
+    // Ask the handler to take a snapshot of the state machine.
+    private static final int CMD_SNAPSHOT_STATE_MACHINE = -3;
+
+    // A timer armed by a state is due.
+    private static final int CMD_STATE_TIMER = -4;
+
+    // The asynchronous enter of a state completed.
+    private static final int CMD_ENTER_COMPLETED = -5;
+
+    // Run the payload once the messages queued before are processed.
+    private static final int CMD_RUN = -6;
+
+    // A message the machine sent to itself while recording.
+    private static final int CMD_UNRECORDED = -7;
+
+    /**
+     * A message armed by a state, only valid while the state stays active.
+     */
+    static final class StateTimer {
+        final StateInfo owner;
+        final int generation;
+        final Message message;
+        MessageToken token;
+
+        StateTimer(StateInfo owner, Message message) {
+            this.owner = owner;
+            this.generation = owner.generation;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A message the machine sent to itself, not recorded when delivered.
+     */
+    private static final class Unrecorded {
+        final Message message;
+        MessageToken token;
+
+        Unrecorded(Message message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * A snapshot request posted from a foreign thread.
+     */
+    private static final class SnapshotRequest {
+        final PayloadCodec codec;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        SnapshotRequest(PayloadCodec codec) {
+            this.codec = codec;
+        }
+    }
 
     // Association between the States and the StateInfos that describe the hierarchy.
     private final Map<State, StateInfo> nodes = new HashMap<>();
 
+    // The StateInfos by index, in order of addition.
+    private final List<StateInfo> infos = new ArrayList<>();
+
+    // The hierarchy frozen when starting the machine, null before.
+    private StateGraph graph;
+
+    // The receivers of each message code by state, resolved when starting.
+    private DispatchTable dispatch;
+
+    // Fingerprint of the hierarchy, to check the snapshots.
+    private int fingerprint;
+
     // The list of messages that will be replayed when the next state will be reached.
-    private final Deque<Message> deferredMessages = new ArrayDeque<>();
+    // Oldest first.
+    private final List<Message> deferredMessages = new ArrayList<>();
+
+    // Maximum number of deferred messages.
+    private int maxDeferredMessages = Integer.MAX_VALUE;
+
+    // Codes of the messages automatically deferred by each state.
+    private final Map<State, Set<Integer>> deferrals = new HashMap<>();
+
+    // Declared transitions of each state: destination by message code.
+    private final Map<State, Map<Integer, State>> transitions = new HashMap<>();
 
     // Initial (starting) state of the machine.
     private StateInfo start;
@@ -34,23 +128,77 @@ class StateMachineHandler extends Handler {
     // it means we have a transition to perform.
     private StateInfo next;
 
-    StateMachineHandler(Looper l) {
+    // True when the restored states must be entered.
+    private boolean restoreEnters;
+
+    // Records of the last processed messages, null when not recording.
+    private volatile LogRecs logRecs;
+
+    // True when metrics have to be collected once started.
+    private boolean metricsEnabled;
+
+    // Metrics of the machine, null when not collected.
+    private MetricsRecorder metrics;
+
+    // True between the processing of a message broadcast to the regions of
+    // an OrthogonalStateMachine and the commit of its transitions.
+    private boolean inBroadcast;
+
+    // Messages received while in a broadcast or while a state is entered
+    // asynchronously, oldest first.
+    private final List<Message> held = new ArrayList<>();
+
+    // The branch being entered when waiting for the asynchronous enter of a
+    // state, null otherwise, and the position of the next state to enter.
+    private StateGraph.Path entering;
+    private int enteringFrom;
+
+    // Recorder of the delivered messages, null when not recording.
+    private StateMachineRecorder recorder;
+
+    // The machine run by this handler, told of the failed enters.
+    private final StateMachine machine;
+
+    // True when start() only freezes the hierarchy, until resumeStart().
+    private boolean suspended;
+
+    // Snapshot requests of foreign threads not answered yet.
+    private final Set<SnapshotRequest> snapshotRequests = ConcurrentHashMap.newKeySet();
+
+    // True while the machine processes a message on its Looper. The messages
+    // it sends meanwhile are sent to itself, and wrapped not to be recorded,
+    // like the deferred messages it replays.
+    private boolean processing;
+
+    // The messages sent to itself by token, until delivered or cancelled.
+    private final Map<MessageToken, Message> unrecorded = new ConcurrentHashMap<>();
+
+    StateMachineHandler(Looper l, StateMachine machine) {
         super(l);
+        this.machine = machine;
     }
 
-    synchronized void addState(State state, State parent) {
+    void addState(State state, State parent) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
         if (nodes.containsKey(state)) {
             throw new IllegalStateException("state already added");
         }
 
         StateInfo parentInfo = nodes.getOrDefault(parent, null);
         StateInfo info = StateInfo.anInfoFor(state)
+                .withIndex(infos.size())
                 .withParent(parentInfo)
                 .withActive(false);
         nodes.put(state, info);
+        infos.add(info);
     }
 
-    synchronized void setInitialState(State state) {
+    void setInitialState(State state) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
         if (!nodes.containsKey(state)) {
             throw new IllegalStateException("state not added");
         }
@@ -58,103 +206,729 @@ class StateMachineHandler extends Handler {
         start = nodes.get(state);
     }
 
-    synchronized void transitionTo(State state) {
+    /**
+     * Freezes the hierarchy and enters the initial state.
+     */
+    void start() {
+        if (start == null) {
+            throw new IllegalStateException("initial state not set");
+        }
+        freeze();
+        if (!suspended) {
+            sendMessage(obtainMessage(CMD_INIT_STATE_MACHINE));
+        }
+    }
+
+    /**
+     * Makes the next start() freeze the hierarchy without entering the
+     * initial state, e.g. to check the fingerprint of the frozen hierarchy
+     * first.
+     */
+    void suspendStart() {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        suspended = true;
+    }
+
+    /**
+     * Enters the initial state of a machine started after suspendStart().
+     */
+    void resumeStart() {
+        if (graph == null || !suspended) {
+            throw new IllegalStateException("state machine start not suspended");
+        }
+        suspended = false;
+        sendMessage(obtainMessage(CMD_INIT_STATE_MACHINE));
+    }
+
+    /**
+     * Freezes the hierarchy: no state can be added after this call.
+     */
+    private void freeze() {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+
+        graph = graphOf(infos);
+        final int[][] deferred = new int[infos.size()][];
+        for (Map.Entry<State, Set<Integer>> e : deferrals.entrySet()) {
+            deferred[nodes.get(e.getKey()).index] = e.getValue().stream().mapToInt(Integer::intValue).toArray();
+        }
+        final int[][] declared = new int[infos.size()][];
+        for (Map.Entry<State, Map<Integer, State>> e : transitions.entrySet()) {
+            final int[] pairs = new int[e.getValue().size() * 2];
+            int i = 0;
+            for (Map.Entry<Integer, State> t : e.getValue().entrySet()) {
+                pairs[i++] = t.getKey();
+                pairs[i++] = nodes.get(t.getValue()).index;
+            }
+            declared[nodes.get(e.getKey()).index] = pairs;
+        }
+        dispatch = new DispatchTable(graph, deferred, declared);
+        fingerprint = StateMachineSnapshot.fingerprintOf(graph);
+        if (recorder != null) {
+            recorder.begin(fingerprint);
+        }
+        if (metricsEnabled) {
+            metrics = new MetricsRecorder(graph);
+        }
+    }
+
+    private static StateGraph graphOf(List<StateInfo> infos) {
+        final State[] states = new State[infos.size()];
+        final int[] parents = new int[infos.size()];
+        for (StateInfo info : infos) {
+            states[info.index] = info.state;
+            parents[info.index] = info.parent == null ? -1 : info.parent.index;
+        }
+        return new StateGraph(states, parents);
+    }
+
+    void transitionTo(State state) {
+        checkLooperThread("transitionTo");
+        final StateInfo info = nodes.get(state);
+        if (info == null) {
+            throw new IllegalStateException("state not added");
+        }
+
+        next = info;
+    }
+
+    /**
+     * Defers the message until the next transition.
+     * @return false if the message was dropped because the maximum number of
+     *         deferred messages is reached.
+     */
+    boolean deferMessage(Message m) {
+        checkLooperThread("deferMessage");
+        if (deferredMessages.size() >= maxDeferredMessages) {
+            return false;
+        }
+        if (metrics != null && current != null) {
+            metrics.onDeferred(current.index);
+        }
+        // The message is dispatched again after the transition.
+        deferredMessages.add(m.retainPayload());
+        return true;
+    }
+
+    /**
+     * Sends a message in <delay> ms, only if <state> stays active until then.
+     */
+    void armStateTimer(State state, Message m, long delay) {
+        checkLooperThread("armStateTimer");
+        final StateInfo owner = nodes.get(state);
+        if (owner == null) {
+            throw new IllegalStateException("state not added");
+        }
+        if (!owner.active) {
+            throw new IllegalStateException("state not active");
+        }
+        final StateTimer timer = new StateTimer(owner, m);
+        timer.token = sendMessageDelayedWithToken(obtainMessage(CMD_STATE_TIMER).withPayload(timer), delay);
+        owner.timers.add(timer);
+    }
+
+    void setMaxDeferredMessages(int max) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        maxDeferredMessages = max;
+    }
+
+    void addDeferral(State state, int what) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
         if (!nodes.containsKey(state)) {
             throw new IllegalStateException("state not added");
         }
+        deferrals.computeIfAbsent(state, s -> new TreeSet<>()).add(what);
+    }
+
+    void addTransition(State from, int what, State to) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        if (!nodes.containsKey(from) || !nodes.containsKey(to)) {
+            throw new IllegalStateException("state not added");
+        }
+        if (transitions.computeIfAbsent(from, s -> new HashMap<>()).putIfAbsent(what, to) != null) {
+            throw new IllegalStateException("transition already added");
+        }
+    }
+
+    void setLogRecSize(int size) {
+        logRecs = size == 0 ? null : new LogRecs(size);
+    }
+
+    LogRecs getLogRecs() {
+        return logRecs;
+    }
+
+    void setMetricsEnabled(boolean enabled) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        metricsEnabled = enabled;
+    }
+
+    MetricsRecorder getMetrics() {
+        return metrics;
+    }
+
+    void setRecorder(StateMachineRecorder recorder) {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        this.recorder = recorder;
+    }
+
+    int getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Sends a message the machine sends to itself while recording, wrapped
+     * so that it is not recorded when delivered. Another Handler of the
+     * Looper doesn't send them while the machine is processing.
+     * @param time the due date, 0 for the front of the queue.
+     * @return the token of the sending, null if the message is not sent by
+     *         the machine to itself.
+     */
+    MessageToken sendUnrecorded(Message m, long time) {
+        if (recorder == null || !processing || !getLooper().isCurrentThread()) {
+            return null;
+        }
+        final Unrecorded u = new Unrecorded(m);
+        u.token = sendMessageAtTimeWithToken(obtainMessage(CMD_UNRECORDED).withPayload(u), time);
+        if (u.token == MessageToken.NONE) {
+            // The queue only releases the payload of the wrapping message.
+            m.releasePayload();
+        } else {
+            unrecorded.put(u.token, m);
+        }
+        return u.token;
+    }
+
+    /**
+     * Cancels a message sent by the machine, see cancel().
+     */
+    boolean cancelMessage(MessageToken token) {
+        if (!cancel(token)) {
+            return false;
+        }
+        final Message m = unrecorded.remove(token);
+        if (m != null) {
+            m.releasePayload();
+        }
+        return true;
+    }
+
+    /**
+     * Takes a snapshot of the machine: its current state, deferred messages
+     * and pending messages. When called from a foreign thread, the snapshot
+     * is taken on the Looper thread and the caller waits for it, once the
+     * machine is not holding its messages anymore.
+     * @throws IllegalStateException if the Looper is quitting.
+     */
+    byte[] snapshot(PayloadCodec codec) throws IOException {
+        if (getLooper().isCurrentThread()) {
+            return snapshotStateMachine(codec);
+        }
+
+        final SnapshotRequest request = new SnapshotRequest(codec);
+        snapshotRequests.add(request);
+        if (sendMessageWithToken(obtainMessage(CMD_SNAPSHOT_STATE_MACHINE).withPayload(request))
+                == MessageToken.NONE) {
+            snapshotRequests.remove(request);
+            throw new IllegalStateException("looper quitting");
+        }
+        try {
+            return request.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fails the snapshot requests still waiting, once the Looper quits while
+     * the machine holds its messages: they would never be taken.
+     */
+    void abandonSnapshots() {
+        for (SnapshotRequest request : snapshotRequests) {
+            if (snapshotRequests.remove(request)) {
+                request.result.completeExceptionally(new IllegalStateException("looper quitting"));
+            }
+        }
+    }
+
+    private byte[] snapshotStateMachine(PayloadCodec codec) throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("state machine not started");
+        }
+        if (holding()) {
+            // The held messages and the branch being entered can't be saved.
+            throw new IllegalStateException("state machine holding its messages");
+        }
+
+        final List<Message> deferred = deferredMessages;
+        final List<Message> pending = copyPendingMessages();
+        for (int i = 0; i < pending.size(); i++) {
+            if (pending.get(i).what == CMD_UNRECORDED) {
+                pending.set(i, ((Unrecorded) pending.get(i).payload).message);
+            }
+        }
+        pending.removeIf(m -> m.what == CMD_INIT_STATE_MACHINE
+                || m.what == CMD_RESTORE_STATE_MACHINE
+                || m.what == CMD_SNAPSHOT_STATE_MACHINE
+                || m.what == CMD_STATE_TIMER
+                || m.what == CMD_ENTER_COMPLETED
+                || m.what == CMD_RUN);
+
+        return StateMachineSnapshot.write(fingerprint, current.index, deferred, pending,
+                getLooper().getClock().millis(), codec);
+    }
+
+    /**
+     * Starts the machine from a snapshot instead of its initial state.
+     * @param enter true to call the enter method of the restored states.
+     */
+    void restore(byte[] snapshot, PayloadCodec codec, boolean enter) throws IOException {
+        if (graph != null) {
+            throw new IllegalStateException("state machine already started");
+        }
+        final StateMachineSnapshot s = StateMachineSnapshot.read(snapshot, codec, this);
+        // Checked before freezing, so that the machine can still be started.
+        final StateGraph g = graphOf(infos);
+        if (s.fingerprint != StateMachineSnapshot.fingerprintOf(g) || s.current < 0 || s.current >= g.size()) {
+            throw new IllegalArgumentException("snapshot of another state machine");
+        }
+        freeze();
+
+        restoreEnters = enter;
+        sendMessage(obtainMessage(CMD_RESTORE_STATE_MACHINE).withPayload(s));
+    }
+
+    /**
+     * Tells if one of the states may be entered asynchronously.
+     */
+    boolean entersAsynchronously() {
+        for (StateInfo info : infos) {
+            if (State.entersAsynchronously(info.state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives a message broadcast to the regions of an OrthogonalStateMachine
+     * to the states, without performing the transitions they ask for. The
+     * other messages of the machine are held until <code>commitRegion</code>.
+     */
+    void processInRegion(Message m) {
+        checkLooperThread("processInRegion");
+        inBroadcast = true;
+        final Message copy = obtainMessage(m.what).withPayload(m.payload);
+        if (recorder != null) {
+            recorder.record(copy, getLooper().getClock().nanoTime());
+        }
+        processing = true;
+        try {
+            processWithStateMachine(copy);
+        } finally {
+            processing = false;
+        }
+    }
+
+    /**
+     * Performs the transitions asked while processing a broadcast message.
+     */
+    void commitRegion() {
+        checkLooperThread("commitRegion");
+        inBroadcast = false;
+        releaseHeld();
+        // The deferred messages go before the held ones.
+        processing = true;
+        try {
+            performTransitions();
+        } finally {
+            processing = false;
+        }
+    }
 
-        next = nodes.get(state);
+    /**
+     * Runs <r> on the Looper once the messages pending for the machine now,
+     * e.g. the ones released by <code>commitRegion</code>, are processed.
+     */
+    void runAfterPending(Runnable r) {
+        sendMessage(obtainMessage(CMD_RUN).withPayload(r));
     }
 
-    synchronized void deferMessage(Message m) {
-        deferredMessages.push(m);
+    /**
+     * Tells if the incoming messages have to be held.
+     */
+    private boolean holding() {
+        return inBroadcast || entering != null;
+    }
+
+    private void releaseHeld() {
+        if (!holding() && !held.isEmpty()) {
+            sendMessagesAtFrontOfQueue(held);
+            held.clear();
+        }
+    }
+
+    /**
+     * Tells if <state> is part of the active branch.
+     * @return null if the state is not part of the machine.
+     */
+    Boolean isActive(State state) {
+        final StateInfo info = nodes.get(state);
+        return info == null ? null : info.active;
+    }
+
+    /**
+     * Ensures the caller runs on the state machine thread.
+     */
+    private void checkLooperThread(String method) {
+        if (!getLooper().isCurrentThread()) {
+            throw new IllegalStateException(method + " called from foreign thread "
+                    + Thread.currentThread().getName());
+        }
     }
 
     @Override
     protected void handleMessage(Message m) {
+        processing = true;
+        try {
+            process(m);
+        } finally {
+            processing = false;
+        }
+    }
+
+    private void process(Message m) {
         switch (m.what) {
             case CMD_INIT_STATE_MACHINE:
                 initStateMachine();
                 break;
 
+            case CMD_RESTORE_STATE_MACHINE:
+                restoreStateMachine((StateMachineSnapshot) m.payload);
+                break;
+
+            case CMD_STATE_TIMER:
+                if (holding()) {
+                    held.add(m);
+                    break;
+                }
+                final StateTimer timer = (StateTimer) m.payload;
+                timer.owner.timers.remove(timer);
+                if (timer.owner.active && timer.owner.generation == timer.generation) {
+                    processWithStateMachine(timer.message);
+                }
+                // Otherwise, the state has been exited since: drop it. The
+                // Looper only releases the payload of the timer message.
+                timer.message.releasePayload();
+                break;
+
+            case CMD_SNAPSHOT_STATE_MACHINE:
+                if (holding()) {
+                    // Taken once the held messages are back in the queue.
+                    held.add(m);
+                    break;
+                }
+                final SnapshotRequest request = (SnapshotRequest) m.payload;
+                if (!snapshotRequests.remove(request)) {
+                    // Already failed by abandonSnapshots().
+                    break;
+                }
+                try {
+                    request.result.complete(snapshotStateMachine(request.codec));
+                } catch (IOException | RuntimeException e) {
+                    request.result.completeExceptionally(e);
+                }
+                break;
+
+            case CMD_RUN:
+                ((Runnable) m.payload).run();
+                break;
+
+            case CMD_UNRECORDED:
+                if (holding()) {
+                    held.add(m);
+                    break;
+                }
+                final Unrecorded u = (Unrecorded) m.payload;
+                if (u.token != null) {
+                    unrecorded.remove(u.token);
+                }
+                processWithStateMachine(u.message);
+                // The Looper only releases the payload of the wrapping message.
+                u.message.releasePayload();
+                break;
+
+            case CMD_ENTER_COMPLETED:
+                resumeEnter((Throwable) m.payload);
+                break;
+
             default:
+                if (holding()) {
+                    held.add(m.retainPayload());
+                    break;
+                }
+                if (recorder != null) {
+                    recorder.record(m, getLooper().getClock().nanoTime());
+                }
                 processWithStateMachine(m);
                 break;
         }
     }
 
-    private synchronized void initStateMachine() {
-        // Prepare a transition to the initial state.
-        next = start;
-        Deque<StateInfo> stack = getNextToAncestorStackLocked();
+    private void initStateMachine() {
+        // Enter all the states of the initial branch, then the initial
+        // states may have asked for a transition.
+        if (enterStates(graph.path(-1, start.index), 0)) {
+            performTransitions();
+        }
+    }
 
-        // Enter all the states of the new branch.
-        while (stack.size() > 0) {
-            current = stack.pop();
+    /**
+     * Enters the rest of the branch once the asynchronous enter of a state
+     * completed, then goes on with the transitions. A failed enter is told
+     * to the machine, which may transition elsewhere instead.
+     * @param error the failure of the enter, null if it succeeded.
+     */
+    private void resumeEnter(Throwable error) {
+        final StateGraph.Path path = entering;
+        entering = null;
+        if (error != null) {
+            final StateInfo target = next;
+            machine.onEnterFailed(current.state,
+                    error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            if (next != target) {
+                // Leave the failed state instead of entering its children.
+                releaseHeld();
+                performTransitions();
+                return;
+            }
+        }
+        if (enterStates(path, enteringFrom)) {
+            releaseHeld();
+            // The deferred messages go before the held ones.
+            performTransitions();
+        }
+    }
+
+    private void restoreStateMachine(StateMachineSnapshot s) {
+        for (Message m : s.deferred) {
+            deferredMessages.add(m);
+        }
+
+        // Messages sent at the front of the queue are put back in reverse
+        // order to keep their order, the others with their remaining delay.
+        for (int i = s.pending.length - 1; i >= 0; i--) {
+            if (StateMachineSnapshot.isFrontOfQueue(s.delays[i])) {
+                sendMessageAtFrontOfQueue(s.pending[i]);
+            }
+        }
+        for (int i = 0; i < s.pending.length; i++) {
+            if (!StateMachineSnapshot.isFrontOfQueue(s.delays[i])) {
+                sendMessageDelayed(s.pending[i], s.delays[i]);
+            }
+        }
+
+        // Activate the branch of the saved state, entering it only if asked.
+        // The entered states may have asked for a transition.
+        final StateGraph.Path path = graph.path(-1, s.current);
+        if (restoreEnters) {
+            if (enterStates(path, 0)) {
+                performTransitions();
+            }
+            return;
+        }
+        for (int i = 0; i < path.enters.length; i++) {
+            current = infos.get(path.enters[i]);
             current.active = true;
-            current.state.enter();
         }
-        next = null;
+        performTransitions();
     }
 
-    private synchronized void processWithStateMachine(Message m) {
-        // Dispatch the message to states
-        dispatchMessageLocked(m);
+    private void processWithStateMachine(Message m) {
+        final LogRecs recs = logRecs;
+        if (recs == null) {
+            // Dispatch the message to states
+            dispatchToStates(m);
+
+            performTransitions();
+            return;
+        }
 
-        // Perform transitions
-        if (next != null) {
+        // Same, keeping track of the states involved.
+        final long time = getLooper().getClock().millis();
+        final long start = System.nanoTime();
+        final StateInfo org = current;
+        final State state = dispatchToStates(m);
+        final StateInfo dst = next;
+        performTransitions();
+        recs.add(time, System.nanoTime() - start, m.what, state,
+                org == null ? null : org.state, dst == null ? null : dst.state);
+    }
+
+    private void performTransitions() {
+        // During a broadcast, the transitions wait for commitRegion.
+        if (next != null && !inBroadcast) {
             while (current != next) {
-                performTransitionLocked();
+                if (!performTransition()) {
+                    // Resumed once the state is entered.
+                    return;
+                }
             }
             next = null;
 
-            // Put deferred messages at the front of queue to ensure they will be replayed before the others.
-            while (deferredMessages.size() > 0) {
-                sendMessageAtFrontOfQueue(deferredMessages.pop());
+            // Put deferred messages at the front of queue to ensure they will
+            // be replayed before the others, all at once and in order.
+            if (!deferredMessages.isEmpty()) {
+                if (recorder != null) {
+                    for (int i = 0; i < deferredMessages.size(); i++) {
+                        deferredMessages.set(i, obtainMessage(CMD_UNRECORDED)
+                                .withPayload(new Unrecorded(deferredMessages.get(i))));
+                    }
+                }
+                sendMessagesAtFrontOfQueue(deferredMessages);
+                deferredMessages.clear();
             }
         }
     }
 
-    private void dispatchMessageLocked(Message m) {
-        StateInfo receiver = current;
-        while (receiver != null) {
-            boolean processed = receiver.state.processMessage(m);
+    /**
+     * Gives the message to the current state, then its parents until one
+     * handles it.
+     * @return the state that handled the message, or null.
+     */
+    private State dispatchToStates(Message m) {
+        if (current == null) {
+            // Not initialized yet, nobody to process the message.
+            return null;
+        }
+
+        final int column = dispatch.column(m.what);
+        if (dispatch.isDeferred(current.index, column)) {
+            // The current state or a parent doesn't want it for now.
+            deferMessage(m);
+            return null;
+        }
+
+        final DispatchTable.Receiver[] receivers = dispatch.receivers(current.index, column);
+        for (int i = 0; i < receivers.length; i++) {
+            if (receivers[i].transition != -1) {
+                // Declared transition, nothing to call.
+                next = infos.get(receivers[i].transition);
+                return graph.states[receivers[i].state];
+            }
+            final boolean processed;
+            if (metrics == null) {
+                processed = receivers[i].process(m);
+            } else {
+                final long start = System.nanoTime();
+                processed = receivers[i].process(m);
+                metrics.onProcess(receivers[i].state, System.nanoTime() - start);
+            }
             if (processed) {
                 // The state correctly processed the message, no need to
                 // dispatch to parent states.
-                break;
+                return graph.states[receivers[i].state];
             }
-            receiver = receiver.parent;
         }
+        return null;
     }
 
-    private void performTransitionLocked() {
-        Deque<StateInfo> nextStack = getNextToAncestorStackLocked();
-        StateInfo commonAncestor = null;
-        if (nextStack.size() > 0) {
-            commonAncestor = nextStack.peek().parent;
+    /**
+     * @return false if the transition is suspended by the asynchronous enter
+     *         of a state.
+     */
+    private boolean performTransition() {
+        final StateGraph.Path path = graph.path(current.index, next.index);
+        if (metrics != null) {
+            metrics.onTransition(current.index, next.index);
         }
 
         // Leave all the states from this branch.
-        while (current != commonAncestor) {
-            current.state.exit();
-            current.active = false;
+        for (int i = 0; i < path.exits; i++) {
+            exitState(current);
             current = current.parent;
         }
 
         // Enter all the states of the new branch.
-        while (nextStack.size() > 0) {
-            current = nextStack.pop();
-            current.active = true;
-            current.state.enter();
+        return enterStates(path, 0);
+    }
+
+    /**
+     * Enters the states of a branch, starting at position <from>.
+     * @return false if suspended by the asynchronous enter of a state.
+     */
+    private boolean enterStates(StateGraph.Path path, int from) {
+        for (int i = from; i < path.enters.length; i++) {
+            current = infos.get(path.enters[i]);
+            final CompletionStage<?> stage = enterState(current);
+            if (stage != null) {
+                // Hold everything until it completes, on any thread.
+                entering = path;
+                enteringFrom = i + 1;
+                stage.whenComplete((result, error) -> {
+                    // Sent at the front of the queue.
+                    if (sendMessageAtTimeWithToken(obtainMessage(CMD_ENTER_COMPLETED).withPayload(error), 0L)
+                            == MessageToken.NONE) {
+                        // The Looper is quitting, the machine stays holding.
+                        abandonSnapshots();
+                    }
+                });
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CompletionStage<?> enterState(StateInfo info) {
+        info.active = true;
+        if (metrics == null) {
+            return info.state.enterAsync();
         }
+        final long start = System.nanoTime();
+        final CompletionStage<?> stage = info.state.enterAsync();
+        final long now = System.nanoTime();
+        metrics.onEnter(info.index, now - start, now);
+        return stage;
     }
 
-    private Deque<StateInfo> getNextToAncestorStackLocked() {
-        Deque<StateInfo> stack = new ArrayDeque<>();
-        for (StateInfo si = next; si != null && !si.active; si = si.parent) {
-            stack.push(si);
+    private void exitState(StateInfo info) {
+        if (metrics == null) {
+            info.state.exit();
+        } else {
+            final long start = System.nanoTime();
+            info.state.exit();
+            final long now = System.nanoTime();
+            metrics.onExit(info.index, now - start, now);
+        }
+        info.active = false;
+        // Cancel all the timers armed by the state, the generation telling
+        // the ones already taken from the queue.
+        info.generation++;
+        for (int i = 0; i < info.timers.size(); i++) {
+            final StateTimer timer = info.timers.get(i);
+            if (cancel(timer.token)) {
+                timer.message.releasePayload();
+            }
         }
-        return stack;
+        info.timers.clear();
     }
 }
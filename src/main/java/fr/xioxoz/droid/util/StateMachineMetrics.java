@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import java.util.Arrays;
+
+/**
+ * <p>A snapshot of the metrics of one or several state machines: the time
+ * spent in each state, the latency of the <code>processMessage</code>,
+ * <code>enter</code> and <code>exit</code> calls of each state, the number of
+ * transitions for each (from, to) pair of states and the number of messages
+ * deferred in each state.</p>
+ *
+ * <p>States are identified by their index, i.e. their order of addition to
+ * the machine. Machines of the same class build the same hierarchy, so their
+ * snapshots can be merged to get the metrics of the whole population.</p>
+ */
+public final class StateMachineMetrics {
+
+    private final String[] names;
+    private final long[] timeInState;
+    private final LatencyHistogram[] process;
+    private final LatencyHistogram[] enter;
+    private final LatencyHistogram[] exit;
+    private final long[] transitions;
+    private final long[] deferred;
+    private final int machines;
+
+    StateMachineMetrics(String[] names, long[] timeInState, LatencyHistogram[] process,
+                        LatencyHistogram[] enter, LatencyHistogram[] exit,
+                        long[] transitions, long[] deferred, int machines) {
+        this.names = names;
+        this.timeInState = timeInState;
+        this.process = process;
+        this.enter = enter;
+        this.exit = exit;
+        this.transitions = transitions;
+        this.deferred = deferred;
+        this.machines = machines;
+    }
+
+    /**
+     * @return the number of machines aggregated in this snapshot.
+     */
+    public int getMachineCount() {
+        return machines;
+    }
+
+    /**
+     * @return the number of states of the machine.
+     */
+    public int getStateCount() {
+        return names.length;
+    }
+
+    /**
+     * @param state the state index.
+     * @return the name of the state.
+     */
+    public String getStateName(int state) {
+        return names[state];
+    }
+
+    /**
+     * @param state the state index.
+     * @return the time spent in the state, in nanoseconds.
+     */
+    public long getTimeInState(int state) {
+        return timeInState[state];
+    }
+
+    /**
+     * @param state the state index.
+     * @return the latencies of the message processing calls of the state.
+     */
+    public LatencyHistogram getProcessLatency(int state) {
+        return process[state];
+    }
+
+    /**
+     * @param state the state index.
+     * @return the latencies of the enter calls of the state.
+     */
+    public LatencyHistogram getEnterLatency(int state) {
+        return enter[state];
+    }
+
+    /**
+     * @param state the state index.
+     * @return the latencies of the exit calls of the state.
+     */
+    public LatencyHistogram getExitLatency(int state) {
+        return exit[state];
+    }
+
+    /**
+     * @param from the index of the state the transitions started from.
+     * @param to the index of the state the transitions went to.
+     * @return the number of transitions from <code>from</code> to <code>to</code>.
+     */
+    public long getTransitionCount(int from, int to) {
+        return transitions[from * names.length + to];
+    }
+
+    /**
+     * @param state the state index.
+     * @return the number of messages deferred while in the state.
+     */
+    public long getDeferredCount(int state) {
+        return deferred[state];
+    }
+
+    /**
+     * Adds the metrics of another snapshot of the same machine class.
+     * @param other the snapshot to add.
+     * @return a new snapshot aggregating both.
+     */
+    public StateMachineMetrics merge(StateMachineMetrics other) {
+        if (!Arrays.equals(names, other.names)) {
+            throw new IllegalArgumentException("cannot merge metrics of different state machines");
+        }
+
+        final int count = names.length;
+        final long[] timeInState = this.timeInState.clone();
+        final LatencyHistogram[] process = new LatencyHistogram[count];
+        final LatencyHistogram[] enter = new LatencyHistogram[count];
+        final LatencyHistogram[] exit = new LatencyHistogram[count];
+        final long[] transitions = this.transitions.clone();
+        final long[] deferred = this.deferred.clone();
+        for (int i = 0; i < count; i++) {
+            timeInState[i] += other.timeInState[i];
+            process[i] = this.process[i].copy();
+            process[i].add(other.process[i]);
+            enter[i] = this.enter[i].copy();
+            enter[i].add(other.enter[i]);
+            exit[i] = this.exit[i].copy();
+            exit[i].add(other.exit[i]);
+            deferred[i] += other.deferred[i];
+        }
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] += other.transitions[i];
+        }
+
+        return new StateMachineMetrics(names, timeInState, process, enter, exit,
+                transitions, deferred, machines + other.machines);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("StateMachineMetrics{machines=").append(machines);
+        for (int i = 0; i < names.length; i++) {
+            sb.append(", ").append(names[i])
+                    .append("={time=").append(timeInState[i])
+                    .append(", process=").append(process[i])
+                    .append(", deferred=").append(deferred[i])
+                    .append('}');
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Records the messages delivered to a {@link StateMachine}, to be replayed
+ * later by a {@link StateMachineReplayer}. The messages the machine sends to
+ * itself, its timers and its deferred messages are not recorded since the
+ * machine produces them again when replayed.</p>
+ *
+ * <p>The recording holds the fingerprint of the hierarchy, then for each
+ * message its delay from the previous one in nanoseconds, its code and its
+ * payload. Messages are recorded on the machine thread; an I/O error stops
+ * the recording and is thrown by <code>close</code>.</p>
+ */
+public final class StateMachineRecorder implements Closeable {
+
+    static final int MAGIC = 0x534d5231; // "SMR1"
+
+    private final DataOutputStream out;
+
+    private final PayloadCodec codec;
+
+    // Date of the previous message, in nanoseconds.
+    private long last;
+
+    private int count;
+
+    private boolean started;
+
+    // The first error met, recording stops after it.
+    private IOException failure;
+
+    /**
+     * Creates a recorder.
+     * @param out the stream to write the recording to, closed with the
+     *            recorder.
+     * @param codec the codec for the message payloads, may be null if all
+     *              the payloads are null.
+     */
+    public StateMachineRecorder(OutputStream out, PayloadCodec codec) {
+        if (out == null) {
+            throw new NullPointerException("output cannot be null");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.codec = codec;
+    }
+
+    /**
+     * @return the number of messages recorded so far.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Flushes the recording and closes the stream.
+     * @throws IOException if the recording failed or can't be flushed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    synchronized void begin(int fingerprint) {
+        if (started) {
+            throw new IllegalStateException("recorder already used");
+        }
+        started = true;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(fingerprint);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    synchronized void record(Message m, long now) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            writeVarLong(out, count == 0 ? 0 : now - last);
+            StateMachineSnapshot.writeMessage(m, out, codec);
+            last = now;
+            count++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads the delay of the next record.
+     * @return the delay, or -1 at the end of the recording.
+     */
+    static long readVarLong(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            return -1;
+        }
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            b = in.read();
+            if (b == -1 || shift > 56) {
+                throw new EOFException("truncated recording");
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Clock;
+import fr.xioxoz.droid.os.Handler;
+import fr.xioxoz.droid.os.Message;
+import fr.xioxoz.droid.os.VirtualClock;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Feeds a recording made by a {@link StateMachineRecorder} to a new machine
+ * of the same class, as fast as it can process the messages, and reports the
+ * throughput and the per-state metrics. When the machine Looper runs on a
+ * {@link VirtualClock}, the messages keep their recorded timing in virtual
+ * time, so that the timers of the machine fire as they did when recorded.
+ */
+public final class StateMachineReplayer {
+
+    /**
+     * The result of a replay.
+     */
+    public static final class Report {
+        private final int count;
+        private final long duration;
+        private final long recordedDuration;
+        private final StateMachineMetrics metrics;
+
+        private Report(int count, long duration, long recordedDuration, StateMachineMetrics metrics) {
+            this.count = count;
+            this.duration = duration;
+            this.recordedDuration = recordedDuration;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return the number of replayed messages.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the time taken to process the messages, in nanoseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the time between the first and the last recorded messages,
+         *         in nanoseconds.
+         */
+        public long getRecordedDuration() {
+            return recordedDuration;
+        }
+
+        /**
+         * @return the number of messages processed per second.
+         */
+        public double getThroughput() {
+            return duration == 0 ? 0.0 : count * 1e9 / duration;
+        }
+
+        /**
+         * @return the metrics of the machine at the end of the replay.
+         */
+        public StateMachineMetrics getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "count=" + count +
+                    ", duration=" + duration +
+                    ", recordedDuration=" + recordedDuration +
+                    ", throughput=" + getThroughput() +
+                    '}';
+        }
+    }
+
+    private StateMachineReplayer() {}
+
+    /**
+     * Replays a recording. The machine is started with its metrics enabled,
+     * then the recorded messages are sent, back to back unless the machine
+     * runs on a virtual clock, and the call returns once all of them have
+     * been delivered.
+     * @param in the recording, consumed but not closed.
+     * @param codec the codec for the message payloads, may be null if all
+     *              the payloads are null.
+     * @param machine a machine of the recorded class, not started.
+     * @return the report of the replay.
+     * @throws IOException if the recording can't be read.
+     * @throws IllegalArgumentException if the recording comes from another
+     *                                  kind of machine, whose initial state
+     *                                  is then not entered.
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              machine.
+     */
+    public static Report replay(InputStream in, PayloadCodec codec, StateMachine machine)
+            throws IOException, InterruptedException {
+        if (in == null || machine == null) {
+            throw new NullPointerException("recording and machine cannot be null");
+        }
+
+        final StateMachineHandler handler = machine.getHandler();
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != StateMachineRecorder.MAGIC) {
+            throw new IOException("not a state machine recording");
+        }
+        final int fingerprint = data.readInt();
+
+        // Decode everything first, only the processing is measured.
+        final List<Message> messages = new ArrayList<>();
+        final List<Long> offsets = new ArrayList<>();
+        long recordedDuration = 0;
+        for (long delay = StateMachineRecorder.readVarLong(data); delay != -1;
+             delay = StateMachineRecorder.readVarLong(data)) {
+            recordedDuration += delay;
+            offsets.add(recordedDuration);
+            messages.add(StateMachineSnapshot.readMessage(data, codec, handler));
+        }
+
+        // The hierarchy may be built by start(): it is only frozen, and the
+        // initial state entered once the fingerprint is checked.
+        machine.setMetricsEnabled(true);
+        handler.suspendStart();
+        machine.start();
+        if (handler.getFingerprint() != fingerprint) {
+            throw new IllegalArgumentException("recording of another state machine");
+        }
+        handler.resumeStart();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler barrier = new Handler(handler.getLooper(), m -> {
+            done.countDown();
+            return true;
+        });
+
+        final Clock clock = handler.getLooper().getClock();
+        final long start = System.nanoTime();
+        if (clock instanceof VirtualClock) {
+            final long origin = clock.nanoTime();
+            for (int i = 0; i < messages.size(); i++) {
+                handler.sendMessageAtTime(messages.get(i), (origin + offsets.get(i)) / 1_000_000L);
+            }
+            barrier.sendMessageAtTime(barrier.obtainMessage(), (origin + recordedDuration) / 1_000_000L);
+        } else {
+            for (Message m : messages) {
+                handler.sendMessage(m);
+            }
+            barrier.sendMessage(barrier.obtainMessage());
+        }
+        done.await();
+        final long duration = System.nanoTime() - start;
+
+        return new Report(messages.size(), duration, recordedDuration, machine.getMetrics());
+    }
+}
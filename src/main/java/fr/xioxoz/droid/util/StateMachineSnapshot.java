@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Handler;
+import fr.xioxoz.droid.os.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <p>The state of a running state machine, in a form that can be written
+ * to and read from a compact binary snapshot.</p>
+ *
+ * <p>The binary form holds a fingerprint of the hierarchy, the index of the
+ * current state, then the deferred and the pending messages. Due dates are
+ * stored relative to the snapshot date so that the pending messages keep
+ * their delay when restored on another node.</p>
+ */
+class StateMachineSnapshot {
+
+    private static final int MAGIC = 0x534d5331; // "SMS1"
+
+    // Delay written for the messages sent at the front of the queue.
+    private static final long FRONT_OF_QUEUE = -1L;
+
+    // Minimum size of a written message: its code and payload flag.
+    private static final int MESSAGE_SIZE = Integer.BYTES + 1;
+
+    /**
+     * Fingerprint of the hierarchy the snapshot has been taken from.
+     */
+    final int fingerprint;
+
+    /**
+     * Index of the current state.
+     */
+    final int current;
+
+    /**
+     * The deferred messages, oldest first.
+     */
+    final Message[] deferred;
+
+    /**
+     * The pending messages in delivery order, and their delay from the
+     * snapshot date, FRONT_OF_QUEUE for messages sent at the front of the
+     * queue.
+     */
+    final Message[] pending;
+    final long[] delays;
+
+    private StateMachineSnapshot(int fingerprint, int current, Message[] deferred, Message[] pending, long[] delays) {
+        this.fingerprint = fingerprint;
+        this.current = current;
+        this.deferred = deferred;
+        this.pending = pending;
+        this.delays = delays;
+    }
+
+    /**
+     * Computes the fingerprint of a hierarchy, from its shape and the names
+     * of its states.
+     */
+    static int fingerprintOf(StateGraph graph) {
+        int hash = graph.size();
+        for (int i = 0; i < graph.size(); i++) {
+            hash = 31 * hash + graph.parents[i];
+            hash = 31 * hash + graph.states[i].getName().hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the snapshot of a machine.
+     * @param deferred the deferred messages, oldest first.
+     * @param pending the pending messages, in delivery order.
+     * @param now the snapshot date, in milliseconds.
+     */
+    static byte[] write(int fingerprint, int current, List<Message> deferred, List<Message> pending,
+                        long now, PayloadCodec codec) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(fingerprint);
+        out.writeInt(current);
+
+        out.writeInt(deferred.size());
+        for (Message m : deferred) {
+            writeMessage(m, out, codec);
+        }
+
+        out.writeInt(pending.size());
+        for (Message m : pending) {
+            out.writeLong(m.getWhen() == 0 ? FRONT_OF_QUEUE : Math.max(m.getWhen() - now, 0L));
+            writeMessage(m, out, codec);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a snapshot, the messages are created for the <target> handler.
+     */
+    static StateMachineSnapshot read(byte[] snapshot, PayloadCodec codec, Handler target) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a state machine snapshot");
+        }
+        final int fingerprint = in.readInt();
+        final int current = in.readInt();
+
+        final Message[] deferred = new Message[readCount(in, MESSAGE_SIZE)];
+        for (int i = 0; i < deferred.length; i++) {
+            deferred[i] = readMessage(in, codec, target);
+        }
+
+        final Message[] pending = new Message[readCount(in, Long.BYTES + MESSAGE_SIZE)];
+        final long[] delays = new long[pending.length];
+        for (int i = 0; i < pending.length; i++) {
+            delays[i] = in.readLong();
+            pending[i] = readMessage(in, codec, target);
+        }
+
+        return new StateMachineSnapshot(fingerprint, current, deferred, pending, delays);
+    }
+
+    /**
+     * Reads a count of records of at least <size> bytes each, checked
+     * against the rest of the input before anything is allocated.
+     */
+    private static int readCount(DataInputStream in, int size) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > in.available() / size) {
+            throw new IOException("invalid count '" + count + "'");
+        }
+        return count;
+    }
+
+    static boolean isFrontOfQueue(long delay) {
+        return delay == FRONT_OF_QUEUE;
+    }
+
+    static void writeMessage(Message m, DataOutput out, PayloadCodec codec) throws IOException {
+        out.writeInt(m.what);
+        if (m.payload == null) {
+            out.writeBoolean(false);
+        } else if (codec == null) {
+            throw new IOException("no codec to write the payload of message " + m.what);
+        } else {
+            out.writeBoolean(true);
+            codec.encode(m.payload, out);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Message readMessage(DataInput in, PayloadCodec codec, Handler target) throws IOException {
+        final Message m = target.obtainMessage(in.readInt());
+        if (in.readBoolean()) {
+            if (codec == null) {
+                throw new IOException("no codec to read the payload of message " + m.what);
+            }
+            m.withPayload(codec.decode(in));
+        }
+        return m;
+    }
+}
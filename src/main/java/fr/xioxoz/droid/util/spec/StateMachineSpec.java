@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util.spec;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Declares the hierarchy of an abstract {@link fr.xioxoz.droid.util.StateMachine}
+ * subclass, processed at compile time by the StateMachineProcessor of the
+ * <code>droid-core-processor</code> artifact, to add to the annotation
+ * processor path.</p>
+ *
+ * <p>Each non-private field of the class annotated with {@link State} is a
+ * state of the machine, named after the field. The class itself carries the
+ * {@link Transition}s. The processor rejects unknown or cyclic parents, a
+ * missing initial state and transitions that can never be taken, then
+ * generates a <code>&lt;Name&gt;Impl</code> subclass which adds the states in
+ * order, exposes their index as <code>STATE_&lt;FIELD&gt;</code> constants,
+ * and declares the transitions.</p>
+ *
+ * <pre>
+ * &#64;StateMachineSpec
+ * &#64;StateMachineSpec.Transition(from = "idle", on = CONNECT, to = "connecting")
+ * abstract class Connection extends StateMachine {
+ *     &#64;StateMachineSpec.State(initial = true)
+ *     final State idle = new Idle();
+ *     &#64;StateMachineSpec.State
+ *     final State connecting = new Connecting();
+ * }
+ * </pre>
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface StateMachineSpec {
+    /**
+     * Tells if the processor checks that each transition can be taken from
+     * the initial state. Disable it when states are also reached through
+     * <code>transitionTo</code>, which the processor cannot see.
+     */
+    boolean checkReachability() default true;
+
+    /**
+     * Marks a field of the machine as one of its states.
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.FIELD)
+    @interface State {
+        /**
+         * Name of the field holding the parent state, empty for a root.
+         */
+        String parent() default "";
+
+        /**
+         * True for the initial state of the machine.
+         */
+        boolean initial() default false;
+    }
+
+    /**
+     * Declares a transition, see
+     * {@link fr.xioxoz.droid.util.StateMachine#addTransition}.
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.TYPE)
+    @Repeatable(Transitions.class)
+    @interface Transition {
+        /**
+         * Name of the field holding the source state.
+         */
+        String from();
+
+        /**
+         * Code of the messages triggering the transition.
+         */
+        int on();
+
+        /**
+         * Name of the field holding the destination state.
+         */
+        String to();
+    }
+
+    /**
+     * Container of the repeated {@link Transition}s.
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.TYPE)
+    @interface Transitions {
+        Transition[] value();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testBuffersAreRecycled() {
+        final BufferPool pool = new BufferPool(64, 1);
+        final PooledBuffer first = pool.acquire();
+        assertTrue(first.buffer().isDirect());
+        assertEquals(64, first.buffer().capacity());
+        first.buffer().putInt(42);
+
+        assertSame(first, first.retain());
+        assertFalse(first.release());
+        assertTrue(first.release());
+        assertEquals(1, pool.getFreeCount());
+        try {
+            first.release();
+            fail();
+        } catch (IllegalStateException ise) {
+            // OK
+        }
+
+        // The same buffer comes back, cleared.
+        final PooledBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.buffer().position());
+        assertEquals(1, second.refCount());
+
+        // The pool keeps one buffer at most.
+        final PooledBuffer third = pool.acquire();
+        second.release();
+        third.release();
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void testBuffersAreReleasedAfterDispatch() throws InterruptedException {
+        final BufferPool pool = new BufferPool(64, 4);
+        final BlockingQueue<PooledBuffer> retained = new ArrayBlockingQueue<>(4);
+        final BlockingQueue<Boolean> synced = new ArrayBlockingQueue<>(1);
+        final HandlerThread thread = new HandlerThread("tests");
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper(), m -> {
+            if (m.what == 1) {
+                retained.add(((PooledBuffer) m.payload).retain());
+            } else if (m.what == 3) {
+                synced.add(true);
+            }
+            return true;
+        });
+
+        final PooledBuffer dropped = pool.acquire();
+        final PooledBuffer kept = pool.acquire();
+        final PooledBuffer removed = pool.acquire();
+        handler.sendMessageDelayed(handler.obtainMessage(2).withPayload(removed), 60000L);
+        handler.removeMessages(2);
+        assertEquals(0, removed.refCount());
+
+        handler.sendMessage(handler.obtainMessage(0).withPayload(dropped));
+        handler.sendMessage(handler.obtainMessage(1).withPayload(kept));
+        assertSame(kept, retained.poll(5, TimeUnit.SECONDS));
+        // Released by the Looper once dispatched.
+        handler.sendMessage(handler.obtainMessage(3));
+        assertTrue(synced.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, dropped.refCount());
+        assertEquals(1, kept.refCount());
+        assertTrue(kept.release());
+
+        thread.quit();
+        thread.join();
+
+        // Refused by the quitting queue.
+        final PooledBuffer refused = pool.acquire();
+        handler.sendMessage(handler.obtainMessage(0).withPayload(refused));
+        assertEquals(0, refused.refCount());
+    }
+
+    @Test
+    public void testLeakDetection() throws InterruptedException {
+        final BufferPool pool = new BufferPool(64, 4);
+        final BlockingQueue<Throwable> leaks = new ArrayBlockingQueue<>(4);
+        pool.setLeakListener(leaks::add);
+
+        pool.acquire();
+        pool.acquire().release();
+        Throwable leak = null;
+        for (int i = 0; i < 50 && leak == null; i++) {
+            System.gc();
+            leak = leaks.poll(100, TimeUnit.MILLISECONDS);
+        }
+        assertNotNull(leak);
+        assertEquals(1, pool.getLeakCount());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HandlerFlowTest {
+
+    private static final int ITEM = 1;
+    private static final int DONE = 2;
+
+    private HandlerThread thread;
+
+    @Before
+    public void setUp() {
+        thread = new HandlerThread("tests");
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        thread.quit();
+        thread.join();
+    }
+
+    @Test
+    public void testSubscriberRequestsAsTheLooperDrains() throws InterruptedException {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final BlockingQueue<Object> received = new ArrayBlockingQueue<>(16);
+        final Handler handler = new Handler(thread.getLooper(), m -> {
+            if (m.what == ITEM) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                received.add(m.payload);
+            } else {
+                received.add("done");
+            }
+            return true;
+        });
+
+        final AtomicLong requested = new AtomicLong();
+        final HandlerSubscriber<Integer> subscriber = new HandlerSubscriber<>(handler, ITEM, DONE, 4);
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                requested.addAndGet(n);
+            }
+
+            @Override
+            public void cancel() {}
+        });
+        assertEquals(4, requested.get());
+
+        // Nothing more is requested while the Looper is busy.
+        for (int i = 0; i < 4; i++) {
+            subscriber.onNext(i);
+        }
+        assertEquals(4, requested.get());
+
+        gate.countDown();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, received.poll(5, TimeUnit.SECONDS));
+        }
+        subscriber.onComplete();
+        assertEquals("done", received.poll(5, TimeUnit.SECONDS));
+        assertEquals(8, requested.get());
+    }
+
+    @Test
+    public void testPublisherBoundsItsBuffer() throws InterruptedException {
+        final int count = 10;
+        final BlockingQueue<Integer> refused = new ArrayBlockingQueue<>(count);
+        final HandlerPublisher<Integer>[] publisher = new HandlerPublisher[1];
+        final Handler producer = new Handler(thread.getLooper(), new Handler.Callback() {
+            private int next;
+
+            @Override
+            public boolean handleMessage(Message m) {
+                // Produce until the buffer is full.
+                while (next < count) {
+                    if (!publisher[0].offer(next)) {
+                        refused.add(next);
+                        return true;
+                    }
+                    next++;
+                }
+                publisher[0].complete();
+                return true;
+            }
+        });
+        publisher[0] = new HandlerPublisher<>(producer, ITEM, 2);
+
+        final BlockingQueue<Object> received = new ArrayBlockingQueue<>(count + 1);
+        final BlockingQueue<Flow.Subscription> subscriptions = new ArrayBlockingQueue<>(1);
+        publisher[0].subscribe(new Flow.Subscriber<Integer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription = s;
+                subscriptions.add(s);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                received.add(item);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                received.add(t);
+            }
+
+            @Override
+            public void onComplete() {
+                received.add("done");
+            }
+        });
+
+        // Nothing is requested yet, the producer stops once two items are
+        // buffered.
+        final Flow.Subscription subscription = subscriptions.poll(5, TimeUnit.SECONDS);
+        producer.sendMessage(producer.obtainMessage(ITEM));
+        assertEquals(Integer.valueOf(2), refused.poll(5, TimeUnit.SECONDS));
+        assertTrue(received.isEmpty());
+
+        subscription.request(1);
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, received.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals("done", received.poll(5, TimeUnit.SECONDS));
+    }
+}
@@ -132,7 +132,7 @@ public class HandlerTest {
             @Override
             protected void handleMessage(Message m) {
                 try {
-                    queue.put(System.currentTimeMillis());
+                    queue.put(MonotonicClock.INSTANCE.millis());
                 } catch (InterruptedException e) {
                     // Bad
                 }
@@ -141,7 +141,7 @@ public class HandlerTest {
 
         Message m = handler.obtainMessage(6475);
 
-        final long when = System.currentTimeMillis() + 1000l;
+        final long when = MonotonicClock.INSTANCE.millis() + 1000l;
         handler.sendMessageAtTime(m, when);
         assertTrue(queue.take() >= when);
     }
@@ -166,7 +166,7 @@ public class HandlerTest {
             @Override
             protected void handleMessage(Message m) {
                 try {
-                    queue.put(System.currentTimeMillis());
+                    queue.put(MonotonicClock.INSTANCE.millis());
                 } catch (InterruptedException e) {
                     // Bad
                 }
@@ -175,7 +175,7 @@ public class HandlerTest {
 
         final Message m = handler.obtainMessage(6475);
         final long delay = 1000l;
-        final long when = System.currentTimeMillis() + delay;
+        final long when = MonotonicClock.INSTANCE.millis() + delay;
         handler.sendMessageDelayed(m, delay);
         assertTrue(queue.take() >= when);
     }
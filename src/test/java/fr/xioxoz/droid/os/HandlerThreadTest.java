@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.os;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.*;
+
+public class HandlerThreadTest {
+
+    @Test
+    public void testBuilder() throws InterruptedException {
+        final BlockingQueue<Throwable> uncaught = new ArrayBlockingQueue<>(1);
+        final VirtualClock clock = new VirtualClock();
+        HandlerThread thread = new HandlerThread.Builder()
+                .withName("built")
+                .withDaemon(true)
+                .withPriority(Thread.MAX_PRIORITY)
+                .withStackSize(256 * 1024)
+                .withUncaughtExceptionHandler((t, e) -> uncaught.add(e))
+                .withClock(clock)
+                .build();
+        assertNull(thread.getLooper());
+        thread.start();
+
+        assertEquals("built", thread.getName());
+        assertTrue(thread.isDaemon());
+        assertEquals(Thread.MAX_PRIORITY, thread.getPriority());
+        assertSame(clock, thread.getLooper().getClock());
+
+        // Exceptions escaping the Looper reach the handler.
+        Handler handler = new Handler(thread.getLooper(), m -> {
+            throw new IllegalStateException("failure");
+        });
+        handler.sendMessage(handler.obtainMessage());
+        assertEquals("failure", uncaught.take().getMessage());
+        thread.join();
+    }
+
+    @Test
+    public void testStartAll() throws InterruptedException {
+        List<HandlerThread> threads = new HandlerThread.Builder()
+                .withName("pool")
+                .startAll(8);
+
+        assertEquals(8, threads.size());
+        for (int i = 0; i < threads.size(); i++) {
+            final HandlerThread t = threads.get(i);
+            assertEquals("pool-" + i, t.getName());
+            assertTrue(t.isAlive());
+            assertNotNull(t.getLooper());
+            assertSame(t, t.getLooper().getThread());
+        }
+
+        for (HandlerThread t : threads) {
+            t.quit();
+            t.join();
+        }
+    }
+}
@@ -6,8 +6,17 @@ package fr.xioxoz.droid.os;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -69,4 +78,143 @@ public class LooperTest {
         thread.getLooper().quit();
         thread.join();
     }
+
+    @Test
+    public void testLooperThread() throws InterruptedException {
+        HandlerThread thread = new HandlerThread("tests");
+        thread.start();
+        Looper looper = thread.getLooper();
+        assertSame(thread, looper.getThread());
+        assertFalse(looper.isCurrentThread());
+        looper.quit();
+        thread.join();
+    }
+
+    @Test
+    public void testVirtualClock() throws InterruptedException {
+        final long day = 24 * 3600 * 1000L;
+        final BlockingQueue<Integer> delivered = new ArrayBlockingQueue<>(16);
+        final VirtualClock clock = new VirtualClock();
+        final long start = clock.millis();
+        HandlerThread thread = new HandlerThread("tests", clock);
+        thread.start();
+        Handler handler = new Handler(thread.getLooper(), m -> delivered.add(m.what));
+        assertSame(clock, thread.getLooper().getClock());
+
+        // Days of delays run at once.
+        for (int i = 1; i <= 3; i++) {
+            handler.sendMessageAtTime(handler.obtainMessage(i), start + i * day);
+        }
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(Integer.valueOf(i), delivered.poll(5, TimeUnit.SECONDS));
+        }
+        assertTrue(clock.millis() - start >= 3 * day);
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testExpiredMessagesAreNotDispatched() throws InterruptedException {
+        final BlockingQueue<String> delivered = new ArrayBlockingQueue<>(16);
+        final VirtualClock clock = new VirtualClock();
+        final long start = clock.millis();
+        HandlerThread thread = new HandlerThread("tests", clock);
+        thread.start();
+        Handler handler = new Handler(thread.getLooper()) {
+            @Override
+            protected void handleMessage(Message m) {
+                // The first message takes long enough for the second to expire.
+                clock.advance(100_000_000L);
+                delivered.add("handled " + m.what);
+            }
+
+            @Override
+            protected void onMessageExpired(Message m) {
+                delivered.add("expired " + m.what);
+            }
+        };
+
+        handler.sendMessageAtTime(handler.obtainMessage(1), start);
+        handler.sendMessageAtTime(handler.obtainMessage(2).withTimeToLive(10L), start);
+        handler.sendMessageAtTime(handler.obtainMessage(3).withDeadline(start + 1000L), start);
+        assertEquals("handled 1", delivered.poll(5, TimeUnit.SECONDS));
+        assertEquals("expired 2", delivered.poll(5, TimeUnit.SECONDS));
+        assertEquals("handled 3", delivered.poll(5, TimeUnit.SECONDS));
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testChannelEventsOnLooperThread() throws IOException, InterruptedException {
+        final BlockingQueue<String> events = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("tests");
+        thread.start();
+        final Looper looper = thread.getLooper();
+        Handler handler = new Handler(looper, m -> events.add("message " + m.what));
+
+        final Pipe pipe = Pipe.open();
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        looper.registerChannel(pipe.source(), SelectionKey.OP_READ, (channel, ops) -> {
+            assertTrue(looper.isCurrentThread());
+            buffer.clear();
+            try {
+                ((Pipe.SourceChannel) channel).read(buffer);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            events.add("read " + buffer.get(0));
+            return buffer.get(0) == 2 ? 0 : SelectionKey.OP_READ;
+        });
+
+        // Messages are still delivered on time while the Looper selects.
+        handler.sendMessageDelayed(handler.obtainMessage(1), 50L);
+        assertEquals("message 1", events.poll(5, TimeUnit.SECONDS));
+        pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+        assertEquals("read 1", events.poll(5, TimeUnit.SECONDS));
+        handler.sendMessage(handler.obtainMessage(2));
+        assertEquals("message 2", events.poll(5, TimeUnit.SECONDS));
+
+        // The listener stops watching after the second byte.
+        pipe.sink().write(ByteBuffer.wrap(new byte[] { 2 }));
+        assertEquals("read 2", events.poll(5, TimeUnit.SECONDS));
+        pipe.sink().write(ByteBuffer.wrap(new byte[] { 3 }));
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+
+        thread.getLooper().quit();
+        thread.join();
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    @Test
+    public void testSocketEvents() throws IOException, InterruptedException {
+        final BlockingQueue<SocketChannel> accepted = new ArrayBlockingQueue<>(1);
+        HandlerThread thread = new HandlerThread("tests");
+        thread.start();
+        final Looper looper = thread.getLooper();
+
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        looper.registerChannel(server, SelectionKey.OP_ACCEPT, (channel, ops) -> {
+            try {
+                accepted.add(((ServerSocketChannel) channel).accept());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return SelectionKey.OP_ACCEPT;
+        });
+
+        final SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        final SocketChannel peer = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(peer);
+        looper.unregisterChannel(server);
+
+        thread.getLooper().quit();
+        thread.join();
+        client.close();
+        peer.close();
+        server.close();
+    }
 }
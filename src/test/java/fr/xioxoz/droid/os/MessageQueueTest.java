@@ -8,6 +8,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -37,14 +38,14 @@ public class MessageQueueTest {
     public void testIsIdleWithMessage() {
         // Test with a message due for now.
         queue.enqueueMessage(Message.obtain()
-                .withTarget(new Handler()), System.currentTimeMillis());
+                .withTarget(new Handler()), MonotonicClock.INSTANCE.millis());
         assertFalse(queue.isIdle());
         assertNotNull(queue.next());
         assertTrue(queue.isIdle());
 
         // Test with a message for later
         queue.enqueueMessage(Message.obtain()
-                .withTarget(new Handler()), System.currentTimeMillis()*10000l);
+                .withTarget(new Handler()), MonotonicClock.INSTANCE.millis()*10000l);
         assertTrue(queue.isIdle());
     }
 
@@ -63,11 +64,11 @@ public class MessageQueueTest {
     public void testGetOneMessage() {
         queue.enqueueMessage(Message.obtain()
                 .withWhat(1234)
-                .withTarget(new Handler()), System.currentTimeMillis());
+                .withTarget(new Handler()), MonotonicClock.INSTANCE.millis());
         Message m = queue.next();
         assertNotNull(m);
         assertEquals(1234, m.what);
-        assertTrue(m.when <= System.currentTimeMillis());
+        assertTrue(m.when <= MonotonicClock.INSTANCE.millis());
     }
 
     @Test
@@ -78,7 +79,7 @@ public class MessageQueueTest {
         for (int i = 0; i < COUNT; i++) {
             queue.enqueueMessage(Message.obtain()
                     .withWhat(i)
-                    .withTarget(new Handler()), System.currentTimeMillis());
+                    .withTarget(new Handler()), MonotonicClock.INSTANCE.millis());
         }
         // Then insert one, theorically at front of queue.
         queue.enqueueMessage(Message.obtain()
@@ -95,7 +96,7 @@ public class MessageQueueTest {
             m = queue.next();
             assertNotNull(m);
             assertEquals(i, m.what);
-            assertTrue(m.when <= System.currentTimeMillis());
+            assertTrue(m.when <= MonotonicClock.INSTANCE.millis());
         }
     }
 
@@ -142,7 +143,7 @@ public class MessageQueueTest {
                     // Add a new message.
                     queue.enqueueMessage(Message.obtain()
                             .withWhat(i)
-                            .withTarget(new Handler()), System.currentTimeMillis());
+                            .withTarget(new Handler()), MonotonicClock.INSTANCE.millis());
                 }
             }
         };
@@ -162,11 +163,11 @@ public class MessageQueueTest {
 
         queue.enqueueMessage(Message.obtain()
                 .withWhat(what)
-                .withTarget(new Handler()), System.currentTimeMillis()+2000l);
+                .withTarget(new Handler()), MonotonicClock.INSTANCE.millis()+2000l);
 
         Message m = queue.next();
         assertEquals(what, m.what);
-        assertTrue(m.what <= System.currentTimeMillis());
+        assertTrue(m.what <= MonotonicClock.INSTANCE.millis());
     }
 
     @Test
@@ -176,7 +177,7 @@ public class MessageQueueTest {
 
         queue.enqueueMessage(Message.obtain()
                 .withWhat(what)
-                .withTarget(testHandler), System.currentTimeMillis());
+                .withTarget(testHandler), MonotonicClock.INSTANCE.millis());
 
         assertTrue(queue.hasMessages(testHandler));
         assertFalse(queue.hasMessages(new Handler()));
@@ -227,4 +228,380 @@ public class MessageQueueTest {
             // OK
         }
     }
+
+    @Test
+    public void testSpilledMessagesAreDeliveredInOrder() {
+        final Handler handler = new Handler();
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setSpillHorizon(100L);
+
+        // The later message is spilled, the other one stays in the queue.
+        queue.enqueueMessage(Message.obtain()
+                .withWhat(2)
+                .withTarget(handler), now + 600L);
+        queue.enqueueMessage(Message.obtain()
+                .withWhat(1)
+                .withTarget(handler), now + 50L);
+        assertTrue(queue.isIdle());
+
+        Message m = queue.next();
+        assertNotNull(m);
+        assertEquals(1, m.what);
+        m = queue.next();
+        assertNotNull(m);
+        assertEquals(2, m.what);
+        assertTrue(MonotonicClock.INSTANCE.millis() >= now + 600L);
+    }
+
+    @Test
+    public void testSpilledMessagesKeepTheirOrder() {
+        final VirtualClock clock = new VirtualClock();
+        final MessageQueue queue = new MessageQueue(clock);
+        final Handler handler = new Handler();
+        final long when = clock.millis() + 600L;
+        queue.setSpillHorizon(100L);
+
+        // Sent for the same date, the first one spilled and not the second.
+        queue.enqueueMessage(Message.obtain().withWhat(1).withTarget(handler), when);
+        clock.advance(550L * 1_000_000L);
+        queue.enqueueMessage(Message.obtain().withWhat(2).withTarget(handler), when);
+
+        Message m = queue.next();
+        assertNotNull(m);
+        assertEquals(1, m.what);
+        m = queue.next();
+        assertNotNull(m);
+        assertEquals(2, m.what);
+    }
+
+    @Test
+    public void testSpilledMessagesCanBeFoundAndRemoved() {
+        final Handler handler = new Handler();
+        final int what = random.nextInt();
+        queue.setSpillHorizon(1000L);
+
+        queue.enqueueMessage(Message.obtain()
+                .withWhat(what)
+                .withTarget(handler), MonotonicClock.INSTANCE.millis() + 60000L);
+        assertTrue(queue.hasMessages(handler));
+        assertTrue(queue.hasMessages(handler, what));
+
+        queue.removeMessages(handler, what);
+        assertFalse(queue.hasMessages(handler));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void testDisablingSpillKeepsMessages() {
+        final Handler handler = new Handler();
+        final int what = random.nextInt();
+        queue.setSpillHorizon(10L);
+
+        queue.enqueueMessage(Message.obtain()
+                .withWhat(what)
+                .withTarget(handler), MonotonicClock.INSTANCE.millis() + 200L);
+        queue.setSpillHorizon(0L);
+        assertTrue(queue.hasMessages(handler, what));
+
+        Message m = queue.next();
+        assertNotNull(m);
+        assertEquals(what, m.what);
+    }
+
+    @Test
+    public void testEnqueueMessageTwice() {
+        final Message m = Message.obtain()
+                .withTarget(new Handler());
+        queue.enqueueMessage(m, MonotonicClock.INSTANCE.millis());
+        try {
+            queue.enqueueMessage(m, MonotonicClock.INSTANCE.millis());
+            fail();
+        } catch (IllegalStateException ise) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testEnqueueMessagesAtFront() {
+        final Handler handler = new Handler();
+        queue.enqueueMessage(Message.obtain()
+                .withWhat(3)
+                .withTarget(handler), MonotonicClock.INSTANCE.millis());
+        queue.enqueueMessagesAtFront(Arrays.asList(
+                Message.obtain().withWhat(1).withTarget(handler),
+                Message.obtain().withWhat(2).withTarget(handler)));
+
+        for (int i = 1; i <= 3; i++) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(i, m.what);
+        }
+    }
+
+    @Test
+    public void testLanesServeUrgentMessagesFirst() {
+        final Handler urgent = new Handler(null, null, 0);
+        final Handler bulk = new Handler(null, null, 1);
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setLanes(2, 0);
+
+        // Older bulk messages wait for the urgent ones, which keep their order.
+        queue.enqueueMessage(Message.obtain().withWhat(3).withTarget(bulk), now - 20L);
+        queue.enqueueMessage(Message.obtain().withWhat(2).withTarget(urgent), now);
+        queue.enqueueMessage(Message.obtain().withWhat(1).withTarget(urgent), now - 10L);
+        queue.enqueueMessage(Message.obtain().withWhat(0).withTarget(bulk).withLane(0), now - 30L);
+
+        for (int i = 0; i <= 3; i++) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(i, m.what);
+        }
+    }
+
+    @Test
+    public void testLanesQuantumPreventsStarvation() {
+        final Handler urgent = new Handler(null, null, 0);
+        final Handler bulk = new Handler(null, null, 5);
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setLanes(3, 2);
+
+        // The bulk handler lane is folded on the last one.
+        queue.enqueueMessage(Message.obtain().withWhat(-1).withTarget(bulk), now);
+        for (int i = 0; i < 6; i++) {
+            queue.enqueueMessage(Message.obtain().withWhat(i).withTarget(urgent), now);
+        }
+
+        final int[] expected = { 0, 1, -1, 2, 3, 4, 5 };
+        for (int what : expected) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(what, m.what);
+        }
+    }
+
+    @Test
+    public void testSettingLanesKeepsMessages() {
+        final Handler urgent = new Handler(null, null, 0);
+        final Handler bulk = new Handler(null, null, 1);
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setLanes(2, 0);
+        queue.setSpillHorizon(10L);
+
+        queue.enqueueMessage(Message.obtain().withWhat(1).withTarget(bulk), now - 10L);
+        queue.enqueueMessage(Message.obtain().withWhat(2).withTarget(urgent), now);
+        queue.enqueueMessage(Message.obtain().withWhat(3).withTarget(bulk), now + 100L);
+        assertEquals(3, queue.copyMessages(bulk).get(1).what);
+
+        // Back to a single lane, messages are ordered by "when" again.
+        queue.setLanes(1, 0);
+        assertTrue(queue.hasMessages(bulk, 3));
+        for (int i = 1; i <= 3; i++) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(i, m.what);
+        }
+    }
+
+    @Test
+    public void testInvalidLanes() {
+        try {
+            queue.setLanes(0, 0);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // OK
+        }
+        try {
+            Message.obtain().withLane(-1);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testEarliestDeadlineFirst() {
+        final Handler handler = new Handler();
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setEarliestDeadlineFirst(true);
+
+        // Expired messages first, then by deadline, then by "when".
+        queue.enqueueMessage(Message.obtain().withWhat(4).withTarget(handler), now - 40L);
+        queue.enqueueMessage(Message.obtain().withWhat(3).withTarget(handler)
+                .withDeadline(now + 60000L), now - 30L);
+        queue.enqueueMessage(Message.obtain().withWhat(2).withTarget(handler)
+                .withTimeToLive(30000L), now - 20L);
+        queue.enqueueMessage(Message.obtain().withWhat(1).withTarget(handler)
+                .withDeadline(now - 10L), now - 50L);
+        queue.enqueueMessage(Message.obtain().withWhat(0).withTarget(handler)
+                .withDeadline(now + 60000L), 0);
+
+        for (int i = 0; i <= 4; i++) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(i, m.what);
+            assertEquals(i == 1, m.expired);
+        }
+    }
+
+    @Test
+    public void testFairModeServesHandlersRoundRobin() {
+        final Handler noisy = new Handler();
+        final Handler quiet = new Handler();
+        final Handler weighted = new Handler();
+        weighted.setWeight(2);
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setFair(true);
+
+        for (int i = 0; i < 4; i++) {
+            queue.enqueueMessage(Message.obtain().withWhat(i).withTarget(noisy), now - 100L + i);
+        }
+        queue.enqueueMessage(Message.obtain().withWhat(10).withTarget(quiet), now);
+        for (int i = 0; i < 3; i++) {
+            queue.enqueueMessage(Message.obtain().withWhat(20 + i).withTarget(weighted), now);
+        }
+        assertEquals(4, queue.getDepth(noisy));
+        assertEquals(3, queue.getMaxDepth(weighted));
+
+        // Each handler keeps the order of its own messages.
+        final int[] expected = { 0, 10, 20, 21, 1, 22, 2, 3 };
+        for (int what : expected) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(what, m.what);
+        }
+        assertEquals(0, queue.getDepth(noisy));
+        assertEquals(4, queue.getMaxDepth(noisy));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void testFairModeKeepsMessages() {
+        final Handler first = new Handler();
+        final Handler second = new Handler();
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setSpillHorizon(10L);
+
+        queue.enqueueMessage(Message.obtain().withWhat(1).withTarget(first), now - 20L);
+        queue.enqueueMessage(Message.obtain().withWhat(2).withTarget(first), now - 10L);
+        queue.enqueueMessage(Message.obtain().withWhat(3).withTarget(second), now + 100L);
+        assertEquals(-1, queue.getDepth(first));
+
+        queue.setFair(true);
+        assertEquals(2, queue.getDepth(first));
+        assertEquals(1, queue.getDepth(second));
+        assertTrue(queue.hasMessages(second, 3));
+        queue.removeMessages(first, 2);
+        assertEquals(1, queue.getDepth(first));
+        assertFalse(queue.hasMessages(first, 2));
+
+        queue.setFair(false);
+        assertTrue(queue.hasMessages(first, 1));
+        for (int i : new int[] { 1, 3 }) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(i, m.what);
+        }
+    }
+
+    @Test
+    public void testSlackAlignsDueDates() {
+        final Handler handler = new Handler();
+        handler.setSlack(40L);
+        final long base = (MonotonicClock.INSTANCE.millis() / 64L + 2L) * 64L;
+
+        // The first two share the grid of 32ms, the last one has no slack.
+        queue.enqueueMessage(Message.obtain().withWhat(1).withTarget(handler), base + 1L);
+        queue.enqueueMessage(Message.obtain().withWhat(2).withTarget(handler).withSlack(32L), base + 20L);
+        queue.enqueueMessage(Message.obtain().withWhat(3).withTarget(handler).withSlack(0L), base + 33L);
+        queue.enqueueMessage(Message.obtain().withWhat(0).withTarget(handler), base - 64L);
+        assertEquals(1, queue.getSavedWakeupCount());
+
+        final long[] expected = { base - 64L, base + 32L, base + 32L, base + 33L };
+        for (int i = 0; i < expected.length; i++) {
+            Message m = queue.next();
+            assertNotNull(m);
+            assertEquals(i, m.what);
+            assertEquals(expected[i], m.getWhen());
+        }
+        assertTrue(queue.getWakeupCount() >= 1);
+
+        // The messages due now are not delayed.
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.enqueueMessage(Message.obtain().withWhat(4).withTarget(handler), now);
+        assertEquals(now, queue.next().getWhen());
+
+        // The slack of a sending isn't kept by the message.
+        final Message m = Message.obtain().withWhat(5).withTarget(handler);
+        final long later = MonotonicClock.INSTANCE.millis() + 64L;
+        queue.enqueueMessage(m, later, 0L);
+        assertEquals(later, m.getWhen());
+        assertEquals(-1L, m.slack);
+        assertSame(m, queue.next());
+    }
+
+    @Test
+    public void testCancelWithToken() {
+        final Handler handler = new Handler();
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setSpillHorizon(1000L);
+
+        final MessageToken first = queue.enqueueMessageWithToken(Message.obtain()
+                .withWhat(1).withTarget(handler), now);
+        final MessageToken second = queue.enqueueMessageWithToken(Message.obtain()
+                .withWhat(1).withTarget(handler), now + 1L);
+        final MessageToken spilled = queue.enqueueMessageWithToken(Message.obtain()
+                .withWhat(1).withTarget(handler), now + 60000L);
+
+        // Only the message of the token is removed.
+        assertTrue(queue.cancel(spilled));
+        assertFalse(spilled.isPending());
+        assertTrue(queue.cancel(first));
+        assertFalse(queue.cancel(first));
+        assertTrue(second.isPending());
+
+        Message m = queue.next();
+        assertSame(second.message, m);
+        assertTrue(queue.isIdle());
+        assertFalse(queue.hasMessages(handler));
+
+        // A token does not cancel a later sending of the same message.
+        final MessageToken resent = queue.enqueueMessageWithToken(m, now);
+        assertFalse(queue.cancel(second));
+        assertTrue(resent.isPending());
+        assertSame(m, queue.next());
+    }
+
+    @Test
+    public void testCancelAfterLaneChange() {
+        final Handler handler = new Handler();
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setLanes(2, 4);
+
+        // The message is found where it was queued, not where its lane says.
+        final MessageToken token = queue.enqueueMessageWithToken(Message.obtain()
+                .withWhat(1).withTarget(handler), now);
+        token.message.withLane(1);
+        assertTrue(queue.cancel(token));
+        assertFalse(token.isPending());
+        assertTrue(queue.isIdle());
+        assertFalse(queue.hasMessages(handler));
+    }
+
+    @Test
+    public void testCancelWithTokenInFairMode() {
+        final Handler handler = new Handler();
+        final long now = MonotonicClock.INSTANCE.millis();
+        queue.setFair(true);
+
+        final MessageToken token = queue.enqueueMessageWithToken(Message.obtain()
+                .withWhat(1).withTarget(handler), now);
+        queue.enqueueMessage(Message.obtain().withWhat(2).withTarget(handler), now);
+        assertEquals(2, queue.getDepth(handler));
+        assertTrue(queue.cancel(token));
+        assertEquals(1, queue.getDepth(handler));
+
+        Message m = queue.next();
+        assertNotNull(m);
+        assertEquals(2, m.what);
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Handler;
+import fr.xioxoz.droid.os.HandlerThread;
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the steady state of the hot paths allocates nothing: once warm,
+ * a message sent again and again, processed by a state machine or triggering
+ * transitions must not allocate on the Looper thread.
+ *
+ * Each path is driven from the Looper thread itself, by sending the same
+ * message again from its dispatch, and the bytes allocated by the thread are
+ * reported for every path.
+ */
+public class AllocationTest {
+
+    private static final int WARMUP = 50_000;
+    private static final int OPERATIONS = 200_000;
+
+    /**
+     * Runs one batch of operations on the Looper thread, then counts down the
+     * latch.
+     */
+    private interface Path {
+        void run(int operations, CountDownLatch done);
+    }
+
+    /**
+     * Sends the same message to itself until the count is reached.
+     */
+    private static final class PingHandler extends Handler {
+        private final Message ping = obtainMessage(0);
+        private int remaining;
+        private CountDownLatch done;
+
+        PingHandler(Looper looper) {
+            super(looper);
+        }
+
+        void start(int operations, CountDownLatch latch) {
+            remaining = operations;
+            done = latch;
+            sendMessage(ping);
+        }
+
+        @Override
+        protected void handleMessage(Message m) {
+            if (--remaining > 0) {
+                sendMessage(m);
+            } else {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Two sibling states under a common parent. In <code>steady</code> mode,
+     * the current state handles the message, otherwise each message triggers
+     * a transition to the other state.
+     */
+    private static final class PingStateMachine extends StateMachine {
+        static final int PING = 0;
+
+        private final Message ping = obtainMessage(PING);
+        private int remaining;
+        private boolean steady;
+        private CountDownLatch done;
+
+        private final State parent = new State();
+
+        private final State first = new State() {
+            @Override
+            public boolean processMessage(Message m) {
+                if (!steady) {
+                    transitionTo(second);
+                }
+                return next(m);
+            }
+        };
+
+        private final State second = new State() {
+            @Override
+            public boolean processMessage(Message m) {
+                if (!steady) {
+                    transitionTo(first);
+                }
+                return next(m);
+            }
+        };
+
+        PingStateMachine(Looper looper) {
+            super(looper);
+            addState(parent);
+            addState(first, parent);
+            addState(second, parent);
+            setInitialState(first);
+        }
+
+        void start(boolean steady, int operations, CountDownLatch latch) {
+            this.steady = steady;
+            remaining = operations;
+            done = latch;
+            sendMessage(ping);
+        }
+
+        private boolean next(Message m) {
+            if (--remaining > 0) {
+                sendMessage(m);
+            } else {
+                done.countDown();
+            }
+            return true;
+        }
+    }
+
+    private com.sun.management.ThreadMXBean threads;
+    private HandlerThread thread;
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        thread = new HandlerThread("allocation");
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (thread != null) {
+            thread.quit();
+            thread.join();
+        }
+    }
+
+    /**
+     * Warms the path up, then runs it and reports the bytes allocated by the
+     * Looper thread meanwhile.
+     * @return the bytes allocated per operation.
+     */
+    private long measure(String name, Path path) throws InterruptedException {
+        run(path, WARMUP);
+
+        final long before = threads.getThreadAllocatedBytes(thread.getId());
+        run(path, OPERATIONS);
+        final long allocated = threads.getThreadAllocatedBytes(thread.getId()) - before;
+
+        System.out.printf("%s: %d bytes allocated over %d operations, %d bytes/operation%n",
+                name, allocated, OPERATIONS, allocated / OPERATIONS);
+        return allocated / OPERATIONS;
+    }
+
+    private static void run(Path path, int operations) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        path.run(operations, done);
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSendAndDispatch() throws InterruptedException {
+        final PingHandler handler = new PingHandler(thread.getLooper());
+        assertEquals(0, measure("Handler.sendMessage -> Looper.loop", handler::start));
+    }
+
+    @Test
+    public void testStateMachineProcessing() throws InterruptedException {
+        final PingStateMachine sm = new PingStateMachine(thread.getLooper());
+        sm.start();
+        assertEquals(0, measure("StateMachine processing",
+                (operations, done) -> sm.start(true, operations, done)));
+    }
+
+    @Test
+    public void testStateMachineTransitions() throws InterruptedException {
+        final PingStateMachine sm = new PingStateMachine(thread.getLooper());
+        sm.start();
+        assertEquals(0, measure("StateMachine transitions",
+                (operations, done) -> sm.start(false, operations, done)));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+
+import java.util.Queue;
+
+public class AnnotatedStateMachine extends StateMachine {
+
+    public enum Result {
+        PARENT_PROCESS,
+        PARENT_PING,
+        CHILD_PING,
+        CHILD_PONG,
+        CHILD_PROCESS,
+    }
+
+    public static final int PING = 1;
+    public static final int PONG = 2;
+    public static final int PANG = 3;
+    public static final int OTHER = 4;
+
+    private class Parent extends State {
+        @Override
+        public boolean processMessage(Message m) {
+            return receiver.add(Result.PARENT_PROCESS);
+        }
+
+        @OnMessage(what = PING)
+        private boolean onPing(Message m) {
+            return receiver.add(Result.PARENT_PING);
+        }
+    }
+
+    private class Child extends State {
+        @OnMessage(what = PING)
+        private boolean onPing(Message m) {
+            receiver.add(Result.CHILD_PING);
+            // Let the parent handle it too.
+            return false;
+        }
+
+        @OnMessage(what = { PONG, PANG })
+        private void onPong(Message m) {
+            receiver.add(Result.CHILD_PONG);
+        }
+
+        @Override
+        public boolean processMessage(Message m) {
+            receiver.add(Result.CHILD_PROCESS);
+            return m.what != OTHER;
+        }
+    }
+
+    private final Queue<Result> receiver;
+    private final State parent = new Parent();
+    private final State child = new Child();
+
+    public AnnotatedStateMachine(Looper looper, Queue<Result> listener) {
+        super(looper);
+        receiver = listener;
+    }
+
+    public void start() {
+        addState(parent);
+            addState(child, parent);
+        setInitialState(child);
+        super.start();
+    }
+}
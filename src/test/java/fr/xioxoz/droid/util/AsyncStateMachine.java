@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public class AsyncStateMachine extends StateMachine {
+
+    public enum Result {
+        ENTER_LOADING,
+        ENTER_READY,
+        HANDLE_READY,
+        ENTER_FAILED,
+    }
+
+    private class Loading extends State {
+        @Override
+        public CompletionStage<?> enterAsync() {
+            receiver.add(Result.ENTER_LOADING);
+            return loaded;
+        }
+    }
+
+    private class Ready extends State {
+        @Override
+        public void enter() {
+            receiver.add(Result.ENTER_READY);
+        }
+
+        @Override
+        public boolean processMessage(Message m) {
+            return receiver.add(Result.HANDLE_READY);
+        }
+    }
+
+    private final Queue<Result> receiver;
+    private final CompletableFuture<Void> loaded;
+    private final State loading = new Loading();
+    private final State ready = new Ready();
+
+    public AsyncStateMachine(Looper looper, Queue<Result> listener, CompletableFuture<Void> loaded) {
+        super(looper);
+        receiver = listener;
+        this.loaded = loaded;
+        addState(loading);
+        addState(ready, loading);
+        setInitialState(ready);
+    }
+
+    @Override
+    protected void onEnterFailed(State state, Throwable error) {
+        receiver.add(Result.ENTER_FAILED);
+    }
+}
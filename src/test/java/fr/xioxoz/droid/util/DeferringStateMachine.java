@@ -7,6 +7,7 @@ package fr.xioxoz.droid.util;
 import fr.xioxoz.droid.os.Looper;
 import fr.xioxoz.droid.os.Message;
 
+import java.io.IOException;
 import java.util.Queue;
 
 public class DeferringStateMachine extends StateMachine {
@@ -70,10 +71,19 @@ public class DeferringStateMachine extends StateMachine {
         receiver = listener;
     }
 
-    public void start() {
+    private void build() {
         addState(state1);
         addState(state2);
         setInitialState(state1);
+    }
+
+    public void start() {
+        build();
         super.start();
     }
+
+    public void restore(byte[] snapshot, PayloadCodec codec, boolean enter) throws IOException {
+        build();
+        super.restore(snapshot, codec, enter);
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+
+import java.util.Queue;
+
+public class FilteringStateMachine extends StateMachine {
+
+    public static final int CONNECT = 1;
+    public static final int DATA = 2;
+    public static final int PING = 3;
+
+    // Reported for the messages handled while idle.
+    public static final int IDLE = -100;
+
+    private class Idle extends State {
+        @Override
+        public boolean processMessage(Message m) {
+            if (m.what == CONNECT) {
+                transitionTo(connected);
+            }
+            return receiver.add(IDLE);
+        }
+    }
+
+    private class Connected extends State {
+        @Override
+        public boolean processMessage(Message m) {
+            return receiver.add((Integer) m.payload);
+        }
+    }
+
+    private final Queue<Integer> receiver;
+    private final State idle = new Idle();
+    private final State connected = new Connected();
+
+    public FilteringStateMachine(Looper looper, Queue<Integer> listener) {
+        super(looper);
+        receiver = listener;
+    }
+
+    public void start() {
+        addState(idle);
+        addState(connected);
+        setInitialState(idle);
+        addDeferral(idle, DATA);
+        setMaxDeferredMessages(2);
+        super.start();
+    }
+
+    public void sendData(int what, int value) {
+        sendMessage(obtainMessage(what).withPayload(value));
+    }
+}
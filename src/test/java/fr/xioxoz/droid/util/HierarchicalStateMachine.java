@@ -101,4 +101,13 @@ public class HierarchicalStateMachine extends StateMachine {
         sendMessage(obtainMessage(MSG_TRANSITION_TO)
                 .withPayload(B1));
     }
+
+    public void transitionToB() {
+        sendMessage(obtainMessage(MSG_TRANSITION_TO)
+                .withPayload(B));
+    }
+
+    public void addLateState() {
+        addState(new State(), A);
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.HandlerThread;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrthogonalStateMachineTest {
+
+    @Test
+    public void testRegionsJoin() throws InterruptedException {
+        final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+        HandlerThread thread = new HandlerThread("test-thread");
+        HandlerThread thread1 = new HandlerThread("region-a");
+        HandlerThread thread2 = new HandlerThread("region-b");
+        thread.start();
+        thread1.start();
+        thread2.start();
+
+        OrthogonalStateMachine sm = new OrthogonalStateMachine(thread.getLooper());
+        RegionStateMachine a = new RegionStateMachine(thread1.getLooper(), results, "a");
+        RegionStateMachine b = new RegionStateMachine(thread2.getLooper(), results, "b");
+        a.observe(sm, b.on);
+        b.observe(sm, a.on);
+        sm.addRegion(a);
+        sm.addRegion(b);
+        a.setLogRecSize(16);
+        sm.start();
+
+        // Both regions see the other one as it was before the message, and
+        // both transition before the next one.
+        for (int i = 0; i < 10; i++) {
+            sm.sendMessage(RegionStateMachine.TOGGLE);
+        }
+        for (int i = 0; i < 10; i++) {
+            final String expected = i % 2 == 0 ? "-off-" : "-on+";
+            assertEquals(new HashSet<>(Arrays.asList("a" + expected, "b" + expected)),
+                    new HashSet<>(Arrays.asList(results.take(), results.take())));
+        }
+
+        sm.sendMessage(RegionStateMachine.OTHER);
+        assertEquals(new HashSet<>(Arrays.asList("a-off-", "b-off-")),
+                new HashSet<>(Arrays.asList(results.take(), results.take())));
+
+        for (HandlerThread t : Arrays.asList(thread, thread1, thread2)) {
+            t.getLooper().quit();
+            t.join();
+        }
+
+        // The broadcast messages are logged by the regions.
+        assertEquals(11, a.getLogRecCount());
+    }
+
+    @Test
+    public void testRegionsProcessReleasedMessagesBeforeNextBroadcast() throws InterruptedException {
+        final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+        HandlerThread thread = new HandlerThread("test-thread");
+        HandlerThread thread1 = new HandlerThread("region-a");
+        HandlerThread thread2 = new HandlerThread("region-b");
+        thread.start();
+        thread1.start();
+        thread2.start();
+
+        // Region a toggles back with a message of its own after each toggle,
+        // held during the broadcast, so b always sees it off.
+        OrthogonalStateMachine sm = new OrthogonalStateMachine(thread.getLooper());
+        RegionStateMachine a = new RegionStateMachine(thread1.getLooper(), results, "a");
+        RegionStateMachine b = new RegionStateMachine(thread2.getLooper(), results, "b");
+        a.observe(sm, b.on);
+        b.observe(sm, a.on);
+        a.setEcho(true);
+        sm.addRegion(a);
+        sm.addRegion(b);
+        sm.start();
+
+        for (int i = 0; i < 50; i++) {
+            sm.sendMessage(RegionStateMachine.TOGGLE);
+        }
+        for (int i = 0; i < 100; i++) {
+            final String result = results.take();
+            if (result.startsWith("b")) {
+                assertTrue(result, result.endsWith("-"));
+            }
+        }
+
+        for (HandlerThread t : Arrays.asList(thread, thread1, thread2)) {
+            t.getLooper().quit();
+            t.join();
+        }
+    }
+
+    @Test
+    public void testFailingRegionIsLeftOut() throws InterruptedException {
+        final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+        HandlerThread thread = new HandlerThread("test-thread");
+        HandlerThread thread1 = new HandlerThread("region-a");
+        HandlerThread thread2 = new HandlerThread("region-b");
+        thread1.setUncaughtExceptionHandler((t, e) -> {});
+        thread.start();
+        thread1.start();
+        thread2.start();
+
+        OrthogonalStateMachine sm = new OrthogonalStateMachine(thread.getLooper());
+        RegionStateMachine a = new RegionStateMachine(thread1.getLooper(), results, "a");
+        RegionStateMachine b = new RegionStateMachine(thread2.getLooper(), results, "b");
+        a.observe(sm, b.on);
+        b.observe(sm, a.on);
+        a.setFailing(true);
+        sm.addRegion(a);
+        sm.addRegion(b);
+        sm.start();
+
+        // Region a throws and stops, b keeps getting the next messages.
+        sm.sendMessage(RegionStateMachine.FAIL);
+        sm.sendMessage(RegionStateMachine.TOGGLE);
+        sm.sendMessage(RegionStateMachine.OTHER);
+        assertEquals("b-off-", results.poll(5, TimeUnit.SECONDS));
+        assertEquals("b-off-", results.poll(5, TimeUnit.SECONDS));
+        assertEquals("b-on-", results.poll(5, TimeUnit.SECONDS));
+        thread1.join();
+
+        for (HandlerThread t : Arrays.asList(thread, thread2)) {
+            t.getLooper().quit();
+            t.join();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAsynchronousEnterRejected() {
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+        try {
+            new OrthogonalStateMachine(thread.getLooper())
+                    .addRegion(new AsyncStateMachine(thread.getLooper(), null, null));
+        } finally {
+            thread.getLooper().quit();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoRegion() {
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+        try {
+            new OrthogonalStateMachine(thread.getLooper()).start();
+        } finally {
+            thread.getLooper().quit();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+
+import java.util.Queue;
+
+/**
+ * A region toggling between two states, reporting on each message whether a
+ * state of another region is active.
+ */
+public class RegionStateMachine extends StateMachine {
+
+    public static final int TOGGLE = 1;
+    public static final int OTHER = 2;
+    public static final int LOCAL = 3;
+    public static final int FAIL = 4;
+
+    private class Toggle extends State {
+        private final String name;
+
+        private Toggle(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean processMessage(Message m) {
+            if (m.what == FAIL && failing) {
+                throw new IllegalStateException("region failed");
+            }
+            if (m.what == LOCAL) {
+                // Toggles back, without reporting.
+                transitionTo(this == off ? on : off);
+                return true;
+            }
+            receiver.add(name + (group.isActive(observed) ? "+" : "-"));
+            if (m.what == TOGGLE) {
+                transitionTo(this == off ? on : off);
+                if (echo) {
+                    sendMessage(LOCAL);
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Queue<String> receiver;
+    private OrthogonalStateMachine group;
+    private State observed;
+    private boolean echo;
+    private boolean failing;
+    final State off;
+    final State on;
+
+    public RegionStateMachine(Looper looper, Queue<String> listener, String name) {
+        super(looper);
+        receiver = listener;
+        off = new Toggle(name + "-off");
+        on = new Toggle(name + "-on");
+        addState(off);
+        addState(on);
+        setInitialState(off);
+    }
+
+    public void observe(OrthogonalStateMachine group, State state) {
+        this.group = group;
+        this.observed = state;
+    }
+
+    /**
+     * Makes each toggle send a local message toggling back.
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /**
+     * Makes the region throw on FAIL.
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+}
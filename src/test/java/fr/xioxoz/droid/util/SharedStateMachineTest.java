@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Handler;
+import fr.xioxoz.droid.os.HandlerThread;
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SharedStateMachineTest {
+
+    private static final int TOGGLE = 1;
+    private static final int COUNT = 2;
+
+    /**
+     * A switch: every instance counts the messages it received while on, and
+     * defers them while off.
+     */
+    private static class SwitchMachine extends SharedStateMachine<AtomicInteger> {
+
+        private final State off = new State() {
+            @Override
+            public boolean processMessage(Message m) {
+                if (m.what == TOGGLE) {
+                    transitionTo(on);
+                } else {
+                    deferMessage(m);
+                }
+                return true;
+            }
+        };
+
+        private final State on = new State() {
+            @Override
+            public boolean processMessage(Message m) {
+                if (m.what == TOGGLE) {
+                    transitionTo(off);
+                } else {
+                    getInstance().getContext().incrementAndGet();
+                }
+                return true;
+            }
+        };
+
+        SwitchMachine(Looper looper) {
+            super(looper);
+            addState(off);
+            addState(on);
+            setInitialState(off);
+        }
+    }
+
+    private HandlerThread thread;
+
+    @Before
+    public void setUp() {
+        thread = new HandlerThread("test-thread");
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    private void sync() throws InterruptedException {
+        final BlockingQueue<Boolean> done = new ArrayBlockingQueue<>(1);
+        Handler h = new Handler(thread.getLooper(), m -> done.add(true));
+        h.sendMessage(h.obtainMessage());
+        done.take();
+    }
+
+    @Test
+    public void testInstancesAreIndependent() throws InterruptedException {
+        final SwitchMachine machine = new SwitchMachine(thread.getLooper());
+        final List<SharedStateMachine.Instance<AtomicInteger>> instances = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            instances.add(machine.newInstance(new AtomicInteger()));
+        }
+
+        // Switch on the even instances, then count on all of them.
+        for (int i = 0; i < instances.size(); i += 2) {
+            instances.get(i).sendMessage(instances.get(i).obtainMessage(TOGGLE));
+        }
+        for (SharedStateMachine.Instance<AtomicInteger> instance : instances) {
+            instance.sendMessage(instance.obtainMessage(COUNT));
+        }
+        sync();
+
+        for (int i = 0; i < instances.size(); i++) {
+            assertEquals(i % 2 == 0 ? 1 : 0, instances.get(i).getContext().get());
+        }
+
+        // Deferred messages are replayed when switching on the odd ones.
+        for (int i = 1; i < instances.size(); i += 2) {
+            instances.get(i).sendMessage(instances.get(i).obtainMessage(TOGGLE));
+        }
+        sync();
+
+        for (SharedStateMachine.Instance<AtomicInteger> instance : instances) {
+            assertEquals(1, instance.getContext().get());
+            assertSame(machine.on, instance.getCurrentState());
+        }
+    }
+
+    @Test
+    public void testHierarchyIsFrozen() {
+        final SwitchMachine machine = new SwitchMachine(thread.getLooper());
+        machine.newInstance(new AtomicInteger());
+        try { machine.addState(new State()); fail(); } catch (IllegalStateException ise) { /* OK */ }
+        try { machine.transitionTo(machine.on); fail(); } catch (IllegalStateException ise) { /* OK */ }
+    }
+}
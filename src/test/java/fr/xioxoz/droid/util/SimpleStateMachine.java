@@ -72,6 +72,10 @@ public class SimpleStateMachine extends StateMachine {
         receiver = listener;
     }
 
+    public void transitionToState2() {
+        transitionTo(state2);
+    }
+
     public void start() {
         addState(state1);
         addState(state2);
@@ -4,21 +4,55 @@
 
 package fr.xioxoz.droid.util;
 
+import fr.xioxoz.droid.os.BufferPool;
+import fr.xioxoz.droid.os.Handler;
 import fr.xioxoz.droid.os.HandlerThread;
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+import fr.xioxoz.droid.os.MonotonicClock;
+import fr.xioxoz.droid.os.PooledBuffer;
+import fr.xioxoz.droid.os.VirtualClock;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class StateMachineTest {
 
     private final Random random = new Random();
 
+    /**
+     * Waits for the messages already queued on the looper to be processed.
+     */
+    private static void sync(Looper looper) throws InterruptedException {
+        final BlockingQueue<Boolean> done = new ArrayBlockingQueue<>(1);
+        Handler h = new Handler(looper, m -> done.add(true));
+        h.sendMessage(h.obtainMessage());
+        done.take();
+    }
+
     @Test
     public void testStateMachine() throws InterruptedException {
         final BlockingQueue<SimpleStateMachine.Result> results = new ArrayBlockingQueue<>(16);
@@ -71,7 +105,7 @@ public class StateMachineTest {
         sm.sendMessage(random.nextInt(10000));
         sm.sendMessageAtFrontOfQueue(sm.obtainMessage().withWhat(random.nextInt(10000)));
         sm.sendMessageDelayed(sm.obtainMessage(random.nextInt(10000)), 100l);
-        sm.sendMessageAtTime(sm.obtainMessage(random.nextInt(10000)), System.currentTimeMillis() + 1000l);
+        sm.sendMessageAtTime(sm.obtainMessage(random.nextInt(10000)), MonotonicClock.INSTANCE.millis() + 1000l);
         assertEquals(SimpleStateMachine.Result.HANDLE_STATE1, results.take());
         assertEquals(SimpleStateMachine.Result.HANDLE_STATE1, results.take());
         assertEquals(SimpleStateMachine.Result.HANDLE_STATE1, results.take());
@@ -96,7 +130,7 @@ public class StateMachineTest {
 
         // Try to send various messages and catch failures
         try { sm.sendMessage(null); fail(); } catch (NullPointerException npe) { /* OK */ }
-        try { sm.sendMessageAtTime(null, System.currentTimeMillis()); fail(); } catch (NullPointerException npe) { /* OK */ }
+        try { sm.sendMessageAtTime(null, MonotonicClock.INSTANCE.millis()); fail(); } catch (NullPointerException npe) { /* OK */ }
         try { sm.sendMessageDelayed(null, 1000l); fail(); } catch (NullPointerException npe) { /* OK */ }
         try { sm.sendMessageAtFrontOfQueue(null); fail(); } catch (NullPointerException npe) { /* OK */ }
         try { sm.sendMessageDelayed(sm.obtainMessage(), -1l); fail(); } catch (IllegalArgumentException iae) { /* OK */ }
@@ -138,6 +172,15 @@ public class StateMachineTest {
         assertEquals(HierarchicalStateMachine.Result.HANDLE_B1, results.take());
         assertEquals(HierarchicalStateMachine.Result.HANDLE_B, results.take());
 
+        // Going to an ancestor leaves and enters the whole branch again.
+        sm.transitionToB();
+        assertEquals(HierarchicalStateMachine.Result.EXIT_B1, results.take());
+        assertEquals(HierarchicalStateMachine.Result.EXIT_B, results.take());
+        assertEquals(HierarchicalStateMachine.Result.ENTER_B, results.take());
+
+        sm.sendMessage(random.nextInt()+1);
+        assertEquals(HierarchicalStateMachine.Result.HANDLE_B, results.take());
+
         thread.getLooper().quit();
         thread.join();
     }
@@ -170,4 +213,538 @@ public class StateMachineTest {
         thread.getLooper().quit();
         thread.join();
     }
+
+    @Test
+    public void testHierarchyIsFrozenOnStart() throws InterruptedException {
+        final BlockingQueue<HierarchicalStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        HierarchicalStateMachine sm = new HierarchicalStateMachine(thread.getLooper(), results);
+        sm.start();
+        try { sm.addLateState(); fail(); } catch (IllegalStateException ise) { /* OK */ }
+        try { sm.start(); fail(); } catch (IllegalStateException ise) { /* OK */ }
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testAnnotatedStateMachine() throws InterruptedException {
+        final BlockingQueue<AnnotatedStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        AnnotatedStateMachine sm = new AnnotatedStateMachine(thread.getLooper(), results);
+        sm.start();
+
+        // Annotated methods take precedence over processMessage.
+        sm.sendMessage(AnnotatedStateMachine.PING);
+        assertEquals(AnnotatedStateMachine.Result.CHILD_PING, results.take());
+        assertEquals(AnnotatedStateMachine.Result.PARENT_PING, results.take());
+
+        sm.sendMessage(AnnotatedStateMachine.PONG);
+        assertEquals(AnnotatedStateMachine.Result.CHILD_PONG, results.take());
+        sm.sendMessage(AnnotatedStateMachine.PANG);
+        assertEquals(AnnotatedStateMachine.Result.CHILD_PONG, results.take());
+
+        // Other messages still go through processMessage.
+        sm.sendMessage(AnnotatedStateMachine.OTHER);
+        assertEquals(AnnotatedStateMachine.Result.CHILD_PROCESS, results.take());
+        assertEquals(AnnotatedStateMachine.Result.PARENT_PROCESS, results.take());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testTransitionFromForeignThread() throws InterruptedException {
+        final BlockingQueue<SimpleStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        SimpleStateMachine sm = new SimpleStateMachine(thread.getLooper(), results);
+        sm.start();
+        assertEquals(SimpleStateMachine.Result.ENTER_STATE1, results.take());
+
+        try { sm.transitionToState2(); fail(); } catch (IllegalStateException ise) { /* OK */ }
+
+        // The machine is still in state 1.
+        sm.sendMessage(random.nextInt(10000) + 2);
+        assertEquals(SimpleStateMachine.Result.HANDLE_STATE1, results.take());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testLogRecs() throws InterruptedException {
+        final BlockingQueue<SimpleStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        SimpleStateMachine sm = new SimpleStateMachine(thread.getLooper(), results);
+        assertTrue(sm.getLogRecs().isEmpty());
+        sm.setLogRecSize(2);
+        sm.start();
+
+        sm.sendMessage(100);
+        sm.sendMessage(SimpleStateMachine.MOVE_TO_STATE2);
+        sm.sendMessage(200);
+        sync(thread.getLooper());
+
+        // Only the last two records are kept.
+        assertEquals(3, sm.getLogRecCount());
+        List<StateMachine.LogRec> recs = sm.getLogRecs();
+        assertEquals(2, recs.size());
+        assertEquals(SimpleStateMachine.MOVE_TO_STATE2, recs.get(0).getWhat());
+        assertEquals("State1", recs.get(0).getState().getName());
+        assertEquals("State1", recs.get(0).getOriginalState().getName());
+        assertEquals("State2", recs.get(0).getDestState().getName());
+        assertEquals(200, recs.get(1).getWhat());
+        assertEquals("State2", recs.get(1).getOriginalState().getName());
+        assertNull(recs.get(1).getDestState());
+
+        StringWriter out = new StringWriter();
+        sm.dump(new PrintWriter(out));
+        assertTrue(out.toString().contains("rec[1]"));
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testLogRecsWhileProcessing() throws InterruptedException {
+        final BlockingQueue<SimpleStateMachine.Result> results = new LinkedBlockingQueue<>();
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        SimpleStateMachine sm = new SimpleStateMachine(thread.getLooper(), results);
+        sm.setLogRecSize(8);
+        sm.start();
+        for (int i = 2; i < 20000; i++) {
+            sm.sendMessage(i);
+        }
+
+        // The copies never hold a record overwritten while copying.
+        while (sm.getLogRecCount() < 19998) {
+            final List<StateMachine.LogRec> recs = sm.getLogRecs();
+            assertTrue(recs.size() <= 8);
+            for (int i = 1; i < recs.size(); i++) {
+                assertEquals(recs.get(i - 1).getWhat() + 1, recs.get(i).getWhat());
+            }
+        }
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testMetrics() throws InterruptedException {
+        final BlockingQueue<SimpleStateMachine.Result> results = new ArrayBlockingQueue<>(64);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        SimpleStateMachine sm1 = new SimpleStateMachine(thread.getLooper(), results);
+        SimpleStateMachine sm2 = new SimpleStateMachine(thread.getLooper(), results);
+        assertNull(sm1.getMetrics());
+        sm1.setMetricsEnabled(true);
+        sm2.setMetricsEnabled(true);
+        sm1.start();
+        sm2.start();
+
+        sm1.sendMessage(SimpleStateMachine.MOVE_TO_STATE2);
+        sm1.sendMessage(SimpleStateMachine.MOVE_TO_STATE1);
+        sm2.sendMessage(SimpleStateMachine.MOVE_TO_STATE2);
+        sm2.sendMessage(100);
+        sync(thread.getLooper());
+
+        StateMachineMetrics metrics = sm1.getMetrics().merge(sm2.getMetrics());
+        assertEquals(2, metrics.getMachineCount());
+        assertEquals(2, metrics.getStateCount());
+        assertEquals("State1", metrics.getStateName(0));
+        assertEquals(2, metrics.getTransitionCount(0, 1));
+        assertEquals(1, metrics.getTransitionCount(1, 0));
+        assertEquals(2, metrics.getProcessLatency(0).getCount());
+        assertEquals(2, metrics.getProcessLatency(1).getCount());
+        assertEquals(3, metrics.getEnterLatency(0).getCount());
+        assertEquals(2, metrics.getExitLatency(0).getCount());
+        assertTrue(metrics.getTimeInState(0) > 0);
+        assertTrue(metrics.getProcessLatency(0).getPercentile(50.0) <= metrics.getProcessLatency(0).getMax());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testSnapshotAndRestore() throws InterruptedException, IOException {
+        final PayloadCodec codec = new PayloadCodec() {
+            @Override
+            public void encode(Object payload, DataOutput out) throws IOException {
+                out.writeUTF((String) payload);
+            }
+
+            @Override
+            public Object decode(DataInput in) throws IOException {
+                return in.readUTF();
+            }
+        };
+        final BlockingQueue<DeferringStateMachine.Result> results1 = new ArrayBlockingQueue<>(16);
+        final BlockingQueue<DeferringStateMachine.Result> results2 = new ArrayBlockingQueue<>(16);
+        HandlerThread thread1 = new HandlerThread("test-thread-1");
+        HandlerThread thread2 = new HandlerThread("test-thread-2");
+        thread1.start();
+        thread2.start();
+
+        // Defer a message and keep another one pending.
+        DeferringStateMachine sm1 = new DeferringStateMachine(thread1.getLooper(), results1);
+        sm1.start();
+        sm1.sendMessage(sm1.obtainMessage(42).withPayload("deferred"));
+        sm1.sendMessageDelayed(sm1.obtainMessage(43).withPayload("pending"), 300L);
+        assertEquals(DeferringStateMachine.Result.ENTER_STATE1, results1.take());
+        assertEquals(DeferringStateMachine.Result.HANDLE_STATE1, results1.take());
+        byte[] snapshot = sm1.snapshot(codec);
+
+        // The restored machine doesn't enter its state again.
+        DeferringStateMachine sm2 = new DeferringStateMachine(thread2.getLooper(), results2);
+        sm2.restore(snapshot, codec, false);
+        sm2.sendMessage(DeferringStateMachine.MOVE_TO_STATE2);
+        assertEquals(DeferringStateMachine.Result.HANDLE_STATE1, results2.take());
+        assertEquals(DeferringStateMachine.Result.EXIT_STATE1, results2.take());
+        assertEquals(DeferringStateMachine.Result.ENTER_STATE2, results2.take());
+        // The deferred message, then the pending one.
+        assertEquals(DeferringStateMachine.Result.HANDLE_STATE2, results2.take());
+        assertEquals(DeferringStateMachine.Result.HANDLE_STATE2, results2.take());
+
+        // Snapshots can't be restored in another kind of machine.
+        SimpleStateMachine sm3 = new SimpleStateMachine(thread2.getLooper(), null);
+        try { sm3.restore(snapshot, codec, false); fail(); } catch (IllegalArgumentException iae) { /* OK */ }
+        // And that machine can still be started.
+        final BlockingQueue<SimpleStateMachine.Result> results3 = new ArrayBlockingQueue<>(16);
+        SimpleStateMachine sm4 = new SimpleStateMachine(thread2.getLooper(), results3);
+        try { sm4.restore(snapshot, codec, false); fail(); } catch (IllegalArgumentException iae) { /* OK */ }
+        sm4.start();
+        assertEquals(SimpleStateMachine.Result.ENTER_STATE1, results3.take());
+
+        // Corrupted counts are rejected before allocating anything.
+        for (int count : new int[] { Integer.MAX_VALUE, -1 }) {
+            final byte[] corrupted = snapshot.clone();
+            for (int i = 0; i < 4; i++) {
+                corrupted[12 + i] = (byte) (count >>> (24 - 8 * i));
+            }
+            DeferringStateMachine sm5 = new DeferringStateMachine(thread2.getLooper(), results2);
+            try { sm5.restore(corrupted, codec, false); fail(); } catch (IOException ioe) { /* OK */ }
+        }
+
+        thread1.getLooper().quit();
+        thread2.getLooper().quit();
+        thread1.join();
+        thread2.join();
+    }
+
+    @Test
+    public void testRecordAndReplay() throws InterruptedException, IOException {
+        final PayloadCodec codec = new PayloadCodec() {
+            @Override
+            public void encode(Object payload, DataOutput out) throws IOException {
+                out.writeUTF((String) payload);
+            }
+
+            @Override
+            public Object decode(DataInput in) throws IOException {
+                return in.readUTF();
+            }
+        };
+        final BlockingQueue<DeferringStateMachine.Result> results1 = new ArrayBlockingQueue<>(16);
+        final BlockingQueue<DeferringStateMachine.Result> results2 = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        // The deferred message is only recorded once, the messages sent by
+        // another Handler of the Looper are recorded.
+        final ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        final StateMachineRecorder recorder = new StateMachineRecorder(recording, codec);
+        DeferringStateMachine sm1 = new DeferringStateMachine(thread.getLooper(), results1);
+        sm1.setRecorder(recorder);
+        sm1.start();
+        sm1.sendMessage(sm1.obtainMessage(42).withPayload("deferred"));
+        final Handler sender = new Handler(thread.getLooper(), m -> {
+            sm1.sendMessage(DeferringStateMachine.MOVE_TO_STATE2);
+            return true;
+        });
+        sender.sendMessage(sender.obtainMessage());
+        // Once for the sender, once for the message it sent.
+        sync(thread.getLooper());
+        sync(thread.getLooper());
+        assertEquals(2, recorder.getCount());
+        recorder.close();
+
+        DeferringStateMachine sm2 = new DeferringStateMachine(thread.getLooper(), results2);
+        StateMachineReplayer.Report report = StateMachineReplayer.replay(
+                new ByteArrayInputStream(recording.toByteArray()), codec, sm2);
+        assertEquals(2, report.getCount());
+        assertTrue(report.getThroughput() > 0.0);
+        assertEquals(1, report.getMetrics().getTransitionCount(0, 1));
+        assertEquals(2, report.getMetrics().getProcessLatency(0).getCount());
+        assertEquals(1, report.getMetrics().getProcessLatency(1).getCount());
+        assertEquals(new ArrayList<>(results1), new ArrayList<>(results2));
+
+        // Recordings can't be replayed in another kind of machine.
+        final BlockingQueue<HierarchicalStateMachine.Result> results3 = new ArrayBlockingQueue<>(16);
+        HierarchicalStateMachine sm3 = new HierarchicalStateMachine(thread.getLooper(), results3);
+        try {
+            StateMachineReplayer.replay(new ByteArrayInputStream(recording.toByteArray()), codec, sm3);
+            fail();
+        } catch (IllegalArgumentException iae) { /* OK */ }
+
+        // Its initial state is not entered.
+        sync(thread.getLooper());
+        assertTrue(results3.isEmpty());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testStateTimerOnVirtualClock() throws InterruptedException {
+        final BlockingQueue<TimerStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        final VirtualClock clock = new VirtualClock();
+        final long start = clock.millis();
+        HandlerThread thread = new HandlerThread("test-thread", clock);
+        thread.start();
+
+        // An hour long timer fires at once.
+        TimerStateMachine sm = new TimerStateMachine(thread.getLooper(), results, 3600 * 1000L);
+        sm.start();
+        assertEquals(TimerStateMachine.Result.ENTER_WAITING, results.take());
+        assertEquals(TimerStateMachine.Result.TIMEOUT_WAITING, results.poll(5, TimeUnit.SECONDS));
+        assertTrue(clock.millis() - start >= 3600 * 1000L);
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testAsyncEnter() throws InterruptedException {
+        final BlockingQueue<AsyncStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        AsyncStateMachine sm = new AsyncStateMachine(thread.getLooper(), results, loaded);
+        sm.start();
+        sm.sendMessage(1);
+        assertEquals(AsyncStateMachine.Result.ENTER_LOADING, results.take());
+
+        // The Looper keeps running, the machine holds its messages.
+        sync(thread.getLooper());
+        assertTrue(results.isEmpty());
+
+        // A snapshot waits for the branch to be entered.
+        final CompletableFuture<byte[]> snapshot = CompletableFuture.supplyAsync(() -> {
+            try {
+                return sm.snapshot(null);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100L);
+        sync(thread.getLooper());
+        assertFalse(snapshot.isDone());
+
+        // The branch is entered, then the held message processed.
+        loaded.complete(null);
+        assertEquals(AsyncStateMachine.Result.ENTER_READY, results.take());
+        assertEquals(AsyncStateMachine.Result.HANDLE_READY, results.take());
+        assertNotNull(snapshot.join());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testMessagesSentToItselfAreNotRecorded() throws InterruptedException, IOException {
+        final BlockingQueue<Integer> results = new ArrayBlockingQueue<>(16);
+        final PooledBuffer buffer = new BufferPool(16, 4).acquire();
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        // Sends itself a message, and another one cancelled at once.
+        final StateMachine sm = new StateMachine(thread.getLooper()) {
+            {
+                final State state = new State() {
+                    @Override
+                    public boolean processMessage(Message m) {
+                        results.add(m.what);
+                        if (m.what == 1) {
+                            sendMessage(2);
+                            assertTrue(cancel(sendMessageDelayedWithToken(
+                                    obtainMessage(3).withPayload(buffer), 1000L)));
+                        }
+                        return true;
+                    }
+                };
+                addState(state);
+                setInitialState(state);
+            }
+        };
+        final StateMachineRecorder recorder = new StateMachineRecorder(new ByteArrayOutputStream(), null);
+        sm.setRecorder(recorder);
+        sm.start();
+        sm.sendMessage(1);
+        assertEquals(1, (int) results.take());
+        assertEquals(2, (int) results.take());
+        sync(thread.getLooper());
+        assertEquals(1, recorder.getCount());
+        assertEquals(0, buffer.refCount());
+        recorder.close();
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testFailedAsyncEnter() throws InterruptedException {
+        final BlockingQueue<AsyncStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        AsyncStateMachine sm = new AsyncStateMachine(thread.getLooper(), results, loaded);
+        sm.start();
+        sm.sendMessage(1);
+        assertEquals(AsyncStateMachine.Result.ENTER_LOADING, results.take());
+
+        // The failure is told to the machine, which goes on entering the
+        // branch, and the other Handlers of the Looper keep running.
+        loaded.completeExceptionally(new IOException("load failed"));
+        assertEquals(AsyncStateMachine.Result.ENTER_FAILED, results.take());
+        assertEquals(AsyncStateMachine.Result.ENTER_READY, results.take());
+        assertEquals(AsyncStateMachine.Result.HANDLE_READY, results.take());
+        sync(thread.getLooper());
+        assertTrue(thread.isAlive());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testSnapshotWhenLooperQuits() throws Exception {
+        final BlockingQueue<AsyncStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        AsyncStateMachine sm = new AsyncStateMachine(thread.getLooper(), results, loaded);
+        sm.start();
+        assertEquals(AsyncStateMachine.Result.ENTER_LOADING, results.take());
+
+        // A snapshot waiting for the branch to be entered fails when the
+        // Looper quits meanwhile.
+        final CompletableFuture<byte[]> snapshot = CompletableFuture.supplyAsync(() -> {
+            try {
+                return sm.snapshot(null);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100L);
+        thread.getLooper().quit();
+        loaded.complete(null);
+        try { snapshot.get(10, TimeUnit.SECONDS); fail(); } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+
+        // The ones asked afterwards are refused.
+        try { sm.snapshot(null); fail(); } catch (IllegalStateException ise) { /* OK */ }
+        thread.join();
+    }
+
+    @Test
+    public void testFilteredAndBoundedDeferral() throws InterruptedException {
+        final BlockingQueue<Integer> results = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        FilteringStateMachine sm = new FilteringStateMachine(thread.getLooper(), results);
+        sm.start();
+
+        // Data is deferred without reaching the idle state, up to 2 messages.
+        sm.sendData(FilteringStateMachine.DATA, 1);
+        sm.sendData(FilteringStateMachine.PING, 0);
+        sm.sendData(FilteringStateMachine.DATA, 2);
+        sm.sendData(FilteringStateMachine.DATA, 3);
+        assertEquals(FilteringStateMachine.IDLE, (int) results.take());
+
+        // Once connected, the deferred messages are replayed in order before
+        // the other ones.
+        sm.sendData(FilteringStateMachine.CONNECT, 0);
+        sm.sendData(FilteringStateMachine.DATA, 4);
+        assertEquals(FilteringStateMachine.IDLE, (int) results.take());
+        assertEquals(1, (int) results.take());
+        assertEquals(2, (int) results.take());
+        assertEquals(4, (int) results.take());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testStateTimers() throws InterruptedException {
+        final BlockingQueue<TimerStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        TimerStateMachine sm = new TimerStateMachine(thread.getLooper(), results, 200L);
+        sm.start();
+        assertEquals(TimerStateMachine.Result.ENTER_WAITING, results.take());
+
+        // Leaving the state removes its timer from the queue.
+        sm.sendMessage(TimerStateMachine.MOVE);
+        assertEquals(TimerStateMachine.Result.ENTER_OTHER, results.take());
+        assertTrue(sm.getHandler().copyPendingMessages().isEmpty());
+        assertNull(results.poll(400L, TimeUnit.MILLISECONDS));
+
+        // Coming back arms a new one, which fires.
+        sm.sendMessage(TimerStateMachine.MOVE);
+        assertEquals(TimerStateMachine.Result.HANDLE_OTHER, results.take());
+        assertEquals(TimerStateMachine.Result.ENTER_WAITING, results.take());
+        assertEquals(TimerStateMachine.Result.TIMEOUT_WAITING, results.take());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
+
+    @Test
+    public void testStateTimerPayloadsAreReleased() throws InterruptedException {
+        final BlockingQueue<TimerStateMachine.Result> results = new ArrayBlockingQueue<>(16);
+        final BufferPool pool = new BufferPool(16, 4);
+        HandlerThread thread = new HandlerThread("test-thread");
+        thread.start();
+
+        // Once the timer fired.
+        final PooledBuffer fired = pool.acquire();
+        TimerStateMachine sm = new TimerStateMachine(thread.getLooper(), results, 50L);
+        sm.setTimeoutPayload(fired);
+        sm.start();
+        assertEquals(TimerStateMachine.Result.ENTER_WAITING, results.take());
+        assertEquals(TimerStateMachine.Result.TIMEOUT_WAITING, results.take());
+        sync(thread.getLooper());
+        assertEquals(0, fired.refCount());
+
+        // Once the timer is cancelled by the exit of its state.
+        final PooledBuffer cancelled = pool.acquire();
+        sm.setTimeoutPayload(cancelled);
+        sm.sendMessage(TimerStateMachine.MOVE);
+        assertEquals(TimerStateMachine.Result.ENTER_OTHER, results.take());
+        sm.sendMessage(TimerStateMachine.MOVE);
+        assertEquals(TimerStateMachine.Result.HANDLE_OTHER, results.take());
+        assertEquals(TimerStateMachine.Result.ENTER_WAITING, results.take());
+        sm.sendMessage(TimerStateMachine.MOVE);
+        assertEquals(TimerStateMachine.Result.ENTER_OTHER, results.take());
+        assertEquals(0, cancelled.refCount());
+
+        thread.getLooper().quit();
+        thread.join();
+    }
 }
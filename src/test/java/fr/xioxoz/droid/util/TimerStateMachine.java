@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 - Damien Dejean <dam.dejean@gmail.com>
+ */
+
+package fr.xioxoz.droid.util;
+
+import fr.xioxoz.droid.os.Looper;
+import fr.xioxoz.droid.os.Message;
+
+import java.util.Queue;
+
+public class TimerStateMachine extends StateMachine {
+
+    public enum Result {
+        ENTER_WAITING,
+        TIMEOUT_WAITING,
+        ENTER_OTHER,
+        HANDLE_OTHER,
+    }
+
+    public static final int MOVE = 1;
+    public static final int TIMEOUT = 2;
+
+    private class Waiting extends State {
+        @Override
+        public void enter() {
+            armStateTimer(this, obtainMessage(TIMEOUT).withPayload(payload), delay);
+            receiver.add(Result.ENTER_WAITING);
+        }
+
+        @Override
+        public boolean processMessage(Message m) {
+            if (m.what == MOVE) {
+                transitionTo(other);
+            } else if (m.what == TIMEOUT) {
+                receiver.add(Result.TIMEOUT_WAITING);
+            }
+            return true;
+        }
+    }
+
+    private class Other extends State {
+        @Override
+        public void enter() {
+            receiver.add(Result.ENTER_OTHER);
+        }
+
+        @Override
+        public boolean processMessage(Message m) {
+            if (m.what == MOVE) {
+                transitionTo(waiting);
+            }
+            return receiver.add(Result.HANDLE_OTHER);
+        }
+    }
+
+    private final Queue<Result> receiver;
+    private final long delay;
+    private volatile Object payload;
+    private final State waiting = new Waiting();
+    private final State other = new Other();
+
+    public TimerStateMachine(Looper looper, Queue<Result> listener, long delay) {
+        super(looper);
+        receiver = listener;
+        this.delay = delay;
+    }
+
+    public void setTimeoutPayload(Object payload) {
+        this.payload = payload;
+    }
+
+    public void start() {
+        addState(waiting);
+        addState(other);
+        setInitialState(waiting);
+        super.start();
+    }
+}